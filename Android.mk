@@ -18,8 +18,16 @@ LOCAL_PATH := $(call my-dir)
 
 include $(CLEAR_VARS)
 LOCAL_JAVA_LIBRARIES := org.apache.http.legacy
-LOCAL_SRC_FILES := $(call all-subdir-java-files)
+LOCAL_STATIC_JAVA_LIBRARIES := OmniJawsClient
+LOCAL_SRC_FILES := $(filter-out src/org/omnirom/omnijaws/client/%, $(call all-subdir-java-files)) \
+    $(call all-Iaidl-files-under, src)
 LOCAL_PACKAGE_NAME := OmniJaws
 LOCAL_MODULE_TAGS := optional
 LOCAL_SDK_VERSION := system_current
 include $(BUILD_PACKAGE)
+
+include $(CLEAR_VARS)
+LOCAL_SRC_FILES := $(call all-java-files-under, src/org/omnirom/omnijaws/client)
+LOCAL_MODULE := OmniJawsClient
+LOCAL_SDK_VERSION := system_current
+include $(BUILD_STATIC_JAVA_LIBRARY)
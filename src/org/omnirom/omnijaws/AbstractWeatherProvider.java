@@ -18,47 +18,269 @@
 package org.omnirom.omnijaws;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.util.EntityUtils;
 
 import android.content.Context;
 import android.location.Location;
+import android.os.SystemClock;
 import android.util.Log;
 
 public abstract class AbstractWeatherProvider {
     private static final String TAG = "AbstractWeatherProvider";
     private static final boolean DEBUG = false;
+    private static final String DEFAULT_CHARSET = "UTF-8";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
     protected Context mContext;
 
     public AbstractWeatherProvider(Context context) {
         mContext = context;
     }
 
+    /**
+     * Reads the response body while it is still coming in from the network.
+     * Returning null marks the request as failed.
+     */
+    protected interface ResponseParser<T> {
+        T parse(Reader reader) throws IOException;
+    }
+
+    /**
+     * A request that is fetched as part of a parallel retrieve.
+     */
+    protected static class Request<T> {
+        private final String mUrl;
+        private final ResponseParser<T> mParser;
+        private T mResult;
+
+        public Request(String url, ResponseParser<T> parser) {
+            mUrl = url;
+            mParser = parser;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public T getResult() {
+            return mResult;
+        }
+    }
+
+    private static final ResponseParser<String> STRING_PARSER = new ResponseParser<String>() {
+        @Override
+        public String parse(Reader reader) throws IOException {
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, count);
+            }
+            return builder.toString();
+        }
+    };
+
     protected String retrieve(String url) {
-        HttpGet request = new HttpGet(url);
+        return retrieve(new HttpGet(url), STRING_PARSER);
+    }
+
+    private <T> T retrieve(HttpGet request, ResponseParser<T> parser) {
+        final ResponseCache cache = ResponseCache.getInstance(mContext);
+        final String url = request.getURI().toString();
+        ResponseCache.Entry cached = cache.get(url);
+        if (cached != null) {
+            if (cache.isFresh(cached)) {
+                T result = parseCached(cached, parser);
+                if (result != null) {
+                    log(TAG, "Cache hit for url: " + url);
+                    return result;
+                }
+                cached = null;
+            } else {
+                if (cached.getEtag() != null) {
+                    request.addHeader(HEADER_IF_NONE_MATCH, cached.getEtag());
+                }
+                if (cached.getLastModified() != null) {
+                    request.addHeader(HEADER_IF_MODIFIED_SINCE, cached.getLastModified());
+                }
+            }
+        }
+
+        ResponseCache.Editor editor = null;
         try {
-            HttpResponse response = new DefaultHttpClient().execute(request);
+            HttpResponse response = HttpTransport.getInstance(mContext).execute(request);
             int code = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if (code == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                log(TAG, "Not modified url: " + url);
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                cache.touch(cached);
+                return parseCached(cached, parser);
+            }
             if (code != HttpStatus.SC_OK) {
                 log(TAG, "HttpStatus: " + code + " for url: " + url);
+                if (entity != null) {
+                    // release the connection back to the pool
+                    entity.consumeContent();
+                }
                 return null;
             }
-            HttpEntity entity = response.getEntity();
             if (entity != null) {
-                return EntityUtils.toString(entity);
+                String charset = EntityUtils.getContentCharSet(entity);
+                if (charset == null) {
+                    charset = DEFAULT_CHARSET;
+                }
+                InputStream in = entity.getContent();
+                editor = cache.edit(url, getHeader(response, HEADER_ETAG),
+                        getHeader(response, HEADER_LAST_MODIFIED), charset);
+                if (editor != null) {
+                    in = editor.wrap(in);
+                }
+                T result = parser.parse(new InputStreamReader(in, charset));
+                if (result == null) {
+                    request.abort();
+                } else {
+                    // read up to the end so the connection can be reused
+                    // and the cache entry is complete
+                    drain(in);
+                    if (editor != null) {
+                        editor.commit();
+                        editor = null;
+                    }
+                }
+                return result;
             }
         } catch (IOException e) {
-            Log.e(TAG, "Couldn't retrieve data from url " + url, e);
+            if (request.isAborted()) {
+                log(TAG, "Cancelled request for url " + url);
+            } else {
+                Log.e(TAG, "Couldn't retrieve data from url " + url, e);
+                request.abort();
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            // thrown by JsonReader on unexpected content
+            Log.w(TAG, "Received malformed data from url " + url, e);
+            request.abort();
+        } finally {
+            if (editor != null) {
+                editor.abort();
+            }
         }
         return null;
     }
 
+    private <T> T parseCached(ResponseCache.Entry entry, ResponseParser<T> parser) {
+        InputStream in = null;
+        try {
+            in = entry.openBody();
+            T result = parser.parse(new InputStreamReader(in, entry.getCharset()));
+            if (result != null) {
+                return result;
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            Log.w(TAG, "Failed to parse cached response", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        ResponseCache.getInstance(mContext).remove(entry);
+        return null;
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1) {
+        }
+    }
+
+    /**
+     * Fetches all requests in parallel and waits for them with a single deadline.
+     * If one of them fails or the deadline passes the others are cancelled.
+     *
+     * @return true if all requests returned a result
+     */
+    protected boolean retrieve(Request<?>... requests) {
+        final HttpTransport transport = HttpTransport.getInstance(mContext);
+        final CompletionService<Boolean> completion =
+                new ExecutorCompletionService<Boolean>(transport.getExecutor());
+        final Map<Future<Boolean>, HttpGet> pending = new HashMap<Future<Boolean>, HttpGet>();
+        final long deadline = SystemClock.elapsedRealtime() + transport.getFetchDeadline();
+        boolean success = false;
+
+        try {
+            for (Request<?> request : requests) {
+                final HttpGet httpGet = new HttpGet(request.getUrl());
+                pending.put(completion.submit(createFetch(request, httpGet)), httpGet);
+            }
+            while (!pending.isEmpty()) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                Future<Boolean> done = completion.poll(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    Log.w(TAG, "Deadline passed with " + pending.size() + " requests pending");
+                    return false;
+                }
+                pending.remove(done);
+                if (!done.get()) {
+                    return false;
+                }
+            }
+            success = true;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Parallel fetch failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!success) {
+                for (Map.Entry<Future<Boolean>, HttpGet> entry : pending.entrySet()) {
+                    entry.getValue().abort();
+                    entry.getKey().cancel(true);
+                }
+            }
+        }
+        return success;
+    }
+
+    private <T> Callable<Boolean> createFetch(final Request<T> request, final HttpGet httpGet) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                request.mResult = retrieve(httpGet, request.mParser);
+                return request.mResult != null;
+            }
+        };
+    }
+
     public abstract WeatherInfo getCustomWeather(String id, boolean metric);
 
     public abstract WeatherInfo getLocationWeather(Location location, boolean metric);
@@ -22,6 +22,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.preference.PreferenceManager;
+import android.util.Base64;
 
 public class Config {
     public static final String PREF_KEY_PROVIDER = "provider";
@@ -30,6 +31,7 @@ public class Config {
     public static final String PREF_KEY_LOCATION_NAME = "location_name";
     public static final String PREF_KEY_CUSTOM_LOCATION = "custom_location";
     public static final String PREF_KEY_WEATHER_DATA = "weather_data";
+    public static final String PREF_KEY_WEATHER_SNAPSHOT = "weather_snapshot";
     public static final String PREF_KEY_LAST_UPDATE = "last_update";
     public static final String PREF_KEY_ENABLE = "enable";
     public static final String PREF_KEY_UPDATE_INTERVAL = "update_interval";
@@ -37,6 +39,115 @@ public class Config {
     public static final String PREF_KEY_LAST_ALARM = "last_alarm";
     public static final String PREF_KEY_UPDATE_ERROR = "update_error";
 
+    private static volatile Snapshot sSnapshot;
+    // the preferences only keep a weak reference to their listeners
+    private static SharedPreferences.OnSharedPreferenceChangeListener sPrefsListener;
+
+    /**
+     * Immutable view of all settings at one point in time.
+     */
+    public static final class Snapshot {
+        private final boolean mEnabled;
+        private final String mProviderId;
+        private final boolean mMetric;
+        private final boolean mCustomLocation;
+        private final String mLocationId;
+        private final String mLocationName;
+        private final int mUpdateInterval;
+        private final String mIconPack;
+        private final long mLastAlarmTime;
+        private final boolean mUpdateError;
+
+        private Snapshot(SharedPreferences prefs) {
+            mEnabled = prefs.getBoolean(PREF_KEY_ENABLE, false);
+            // return provider.equals("1") ? "OpenWeatherMap" : "Yahoo";
+            mProviderId = "OpenWeatherMap";        //only OWM so no need to check really
+            mMetric = prefs.getString(PREF_KEY_UNITS, "0").equals("0");
+            mCustomLocation = prefs.getBoolean(PREF_KEY_CUSTOM_LOCATION, false);
+            mLocationId = prefs.getString(PREF_KEY_LOCATION_ID, null);
+            mLocationName = prefs.getString(PREF_KEY_LOCATION_NAME, null);
+            mUpdateInterval = Integer.valueOf(prefs.getString(PREF_KEY_UPDATE_INTERVAL, "2"));
+            mIconPack = prefs.getString(PREF_KEY_ICON_PACK, null);
+            mLastAlarmTime = prefs.getLong(PREF_KEY_LAST_ALARM, 0);
+            mUpdateError = prefs.getBoolean(PREF_KEY_UPDATE_ERROR, false);
+        }
+
+        public boolean isEnabled() {
+            return mEnabled;
+        }
+
+        public String getProviderId() {
+            return mProviderId;
+        }
+
+        public boolean isMetric() {
+            return mMetric;
+        }
+
+        public boolean isCustomLocation() {
+            return mCustomLocation;
+        }
+
+        public String getLocationId() {
+            return mLocationId;
+        }
+
+        public String getLocationName() {
+            return mLocationName;
+        }
+
+        public int getUpdateInterval() {
+            return mUpdateInterval;
+        }
+
+        public String getIconPack() {
+            return mIconPack;
+        }
+
+        public long getLastAlarmTime() {
+            return mLastAlarmTime;
+        }
+
+        public boolean isUpdateError() {
+            return mUpdateError;
+        }
+    }
+
+    /**
+     * Returns the current settings. The snapshot is shared and only
+     * reloaded after the preferences changed.
+     */
+    public static Snapshot getSnapshot(Context context) {
+        Snapshot snapshot = sSnapshot;
+        if (snapshot == null) {
+            synchronized (Config.class) {
+                snapshot = sSnapshot;
+                if (snapshot == null) {
+                    SharedPreferences prefs = PreferenceManager
+                            .getDefaultSharedPreferences(context);
+                    if (sPrefsListener == null) {
+                        sPrefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                            @Override
+                            public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                                invalidateSnapshot();
+                            }
+                        };
+                        prefs.registerOnSharedPreferenceChangeListener(sPrefsListener);
+                    }
+                    snapshot = new Snapshot(prefs);
+                    sSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private static void invalidateSnapshot() {
+        synchronized (Config.class) {
+            sSnapshot = null;
+        }
+    }
+
     public static AbstractWeatherProvider getProvider(Context context) {
         SharedPreferences prefs = PreferenceManager
                 .getDefaultSharedPreferences(context);
@@ -47,161 +158,219 @@ public class Config {
     }
 
     public static String getProviderId(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        String provider = prefs.getString(PREF_KEY_PROVIDER, "0");
-        // return provider.equals("1") ? "OpenWeatherMap" : "Yahoo";
-        return "OpenWeatherMap";        //only OWM so no need to check really
+        return getSnapshot(context).getProviderId();
     }
 
     public static boolean isMetric(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_UNITS, "0").equals("0");
+        return getSnapshot(context).isMetric();
     }
 
     public static boolean isCustomLocation(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getBoolean(PREF_KEY_CUSTOM_LOCATION, false);
+        return getSnapshot(context).isCustomLocation();
     }
 
     public static String getLocationId(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_LOCATION_ID, null);
+        return getSnapshot(context).getLocationId();
     }
 
     public static void setLocationId(Context context, String id) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_LOCATION_ID, id).commit();
+        edit(context).setLocationId(id).commit();
     }
     
     public static String getLocationName(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_LOCATION_NAME, null);
+        return getSnapshot(context).getLocationName();
     }
     
     public static void setLocationName(Context context, String name) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_LOCATION_NAME, name).commit();
+        edit(context).setLocationName(name).commit();
     }
 
     public static WeatherInfo getWeatherData(Context context) {
+        WeatherStore store = WeatherStore.getInstance(context);
+        if (!store.exists()) {
+            migrateWeatherData(context, store);
+        }
+        return store.read(context);
+    }
+
+    // weather data used to be kept in the shared preferences
+    private static void migrateWeatherData(Context context, WeatherStore store) {
         SharedPreferences prefs = PreferenceManager
                 .getDefaultSharedPreferences(context);
 
-        String str = prefs.getString(PREF_KEY_WEATHER_DATA, null);
-        if (str != null) {
-            WeatherInfo data = WeatherInfo.fromSerializedString(context, str);
-            return data;
+        if (!prefs.contains(PREF_KEY_WEATHER_SNAPSHOT) && !prefs.contains(PREF_KEY_WEATHER_DATA)) {
+            return;
+        }
+        WeatherInfo data = null;
+        String snapshot = prefs.getString(PREF_KEY_WEATHER_SNAPSHOT, null);
+        if (snapshot != null) {
+            try {
+                data = WeatherInfo.fromByteArray(context, Base64.decode(snapshot, Base64.NO_WRAP));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        if (data == null) {
+            data = WeatherInfo.fromSerializedString(context,
+                    prefs.getString(PREF_KEY_WEATHER_DATA, null));
         }
-        return null;
+        if (data != null) {
+            store.write(data, prefs.getLong(PREF_KEY_LAST_UPDATE, 0));
+        }
+        prefs.edit()
+                .remove(PREF_KEY_WEATHER_SNAPSHOT)
+                .remove(PREF_KEY_WEATHER_DATA)
+                .remove(PREF_KEY_LAST_UPDATE)
+                .commit();
     }
-    
-    public static void setWeatherData(Context context, WeatherInfo data) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
 
-        prefs.edit().putString(PREF_KEY_WEATHER_DATA, data.toSerializedString()).commit();
-        prefs.edit().putLong(PREF_KEY_LAST_UPDATE, System.currentTimeMillis()).commit();
+    /**
+     * @return a number that changes whenever the weather data changes
+     */
+    public static long getWeatherVersion(Context context) {
+        return WeatherStore.getInstance(context).getVersion();
     }
 
-    public static void clearWeatherData(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
+    public static void setWeatherData(Context context, WeatherInfo data) {
+        WeatherStore.getInstance(context).write(data, System.currentTimeMillis());
+    }
 
-        prefs.edit().remove(PREF_KEY_WEATHER_DATA).commit();
-        prefs.edit().remove(PREF_KEY_LAST_UPDATE).commit();
+    public static void clearWeatherData(Context context) {
+        WeatherStore.getInstance(context).clear();
     }
-    
-    public static long getLastUpdateTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
 
-        return prefs.getLong(PREF_KEY_LAST_UPDATE, 0);
+    public static long getLastUpdateTime(Context context) {
+        return WeatherStore.getInstance(context).getLastUpdateTime();
     }
 
     public static void clearLastUpdateTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putLong(PREF_KEY_LAST_UPDATE, 0).commit();
-        prefs.edit().putLong(PREF_KEY_LAST_ALARM, 0).commit();
+        WeatherStore.getInstance(context).setLastUpdateTime(0);
+        edit(context).clearLastAlarmTime().commit();
     }
 
     public static boolean isEnabled(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getBoolean(PREF_KEY_ENABLE, false);
+        return getSnapshot(context).isEnabled();
     }
 
     public static boolean setEnabled(Context context, boolean value) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.edit().putBoolean(PREF_KEY_ENABLE, value).commit();
+        return edit(context).setEnabled(value).commit();
     }
 
     public static int getUpdateInterval(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        String valueString = prefs.getString(PREF_KEY_UPDATE_INTERVAL, "2");
-        return Integer.valueOf(valueString);
+        return getSnapshot(context).getUpdateInterval();
     }
 
     public static String getIconPack(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_ICON_PACK, null);
+        return getSnapshot(context).getIconPack();
     }
 
     public static void setIconPack(Context context, String value) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_ICON_PACK, value).commit();
+        edit(context).setIconPack(value).commit();
     }
 
     public static long getLastAlarmTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getLong(PREF_KEY_LAST_ALARM, 0);
+        return getSnapshot(context).getLastAlarmTime();
     }
 
     public static void setLastAlarmTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putLong(PREF_KEY_LAST_ALARM, System.currentTimeMillis()).commit();
+        edit(context).setLastAlarmTime().commit();
     }
 
     public static boolean isUpdateError(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getBoolean(PREF_KEY_UPDATE_ERROR, false);
+        return getSnapshot(context).isUpdateError();
     }
 
     public static void setUpdateError(Context context, boolean value) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
+        edit(context).setUpdateError(value).commit();
+    }
+
+    public static Editor edit(Context context) {
+        return new Editor(context);
+    }
+
+    /**
+     * Collects related changes so they end up in a single write.
+     * Use {@link #commit} when the values must be on disk before going on
+     * and {@link #apply} for everything else.
+     */
+    public static class Editor {
+        private final SharedPreferences.Editor mEditor;
+        private boolean mPending;
+
+        private Editor(Context context) {
+            mEditor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        }
+
+        public Editor setLocation(String id, String name) {
+            return setLocationId(id).setLocationName(name);
+        }
+
+        public Editor setLocationId(String id) {
+            mEditor.putString(PREF_KEY_LOCATION_ID, id);
+            mPending = true;
+            return this;
+        }
 
-        prefs.edit().putBoolean(PREF_KEY_UPDATE_ERROR, value).commit();
+        public Editor setLocationName(String name) {
+            mEditor.putString(PREF_KEY_LOCATION_NAME, name);
+            mPending = true;
+            return this;
+        }
+
+        public Editor setEnabled(boolean value) {
+            mEditor.putBoolean(PREF_KEY_ENABLE, value);
+            mPending = true;
+            return this;
+        }
+
+        public Editor setIconPack(String value) {
+            mEditor.putString(PREF_KEY_ICON_PACK, value);
+            mPending = true;
+            return this;
+        }
+
+        public Editor setLastAlarmTime() {
+            mEditor.putLong(PREF_KEY_LAST_ALARM, System.currentTimeMillis());
+            mPending = true;
+            return this;
+        }
+
+        public Editor clearLastAlarmTime() {
+            mEditor.putLong(PREF_KEY_LAST_ALARM, 0);
+            mPending = true;
+            return this;
+        }
+
+        public Editor setUpdateError(boolean value) {
+            mEditor.putBoolean(PREF_KEY_UPDATE_ERROR, value);
+            mPending = true;
+            return this;
+        }
+
+        /**
+         * Writes all pending changes synchronously.
+         */
+        public boolean commit() {
+            if (!mPending) {
+                return true;
+            }
+            mPending = false;
+            // the listener is only called later on the main thread
+            boolean result = mEditor.commit();
+            invalidateSnapshot();
+            return result;
+        }
+
+        /**
+         * Publishes all pending changes in memory right away and writes them in the background.
+         */
+        public void apply() {
+            if (!mPending) {
+                return;
+            }
+            mPending = false;
+            mEditor.apply();
+            invalidateSnapshot();
+        }
     }
 
     public static boolean isSetupDone(Context context) {
@@ -62,8 +62,7 @@ public class CustomLocationPreference extends EditTextPreference implements Weat
                     new WeatherLocationTask(getContext(), getEditText().getText().toString(),
                             CustomLocationPreference.this).execute();
                 } else {
-                    Config.setLocationId(getContext(), null);
-                    Config.setLocationName(getContext(), null);
+                    Config.edit(getContext()).setLocation(null, null).commit();
                     setSummary("");
                     setText("");
                     mDialog.dismiss();
@@ -91,8 +90,7 @@ public class CustomLocationPreference extends EditTextPreference implements Weat
 
     @Override
     public void applyLocation(WeatherInfo.WeatherLocation result) {
-        Config.setLocationId(getContext(), result.id);
-        Config.setLocationName(getContext(), result.city);
+        Config.edit(getContext()).setLocation(result.id, result.city).commit();
         setText(result.city);
         mDialog.dismiss();
         setSummary(result.city);
@@ -0,0 +1,306 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+/**
+ * Process wide http client shared by all weather providers.
+ * Connections are pooled per host and kept alive between requests
+ * so a refresh does not pay for a new connection setup on every call.
+ */
+public class HttpTransport {
+    private static final String TAG = "WeatherService:HttpTransport";
+    private static final boolean DEBUG = false;
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+
+    private static HttpTransport sInstance;
+
+    private final DefaultHttpClient mClient;
+    private final ClientConnectionManager mConnectionManager;
+    private final long mKeepAliveTimeout;
+    private final long mFetchDeadline;
+    private final ThreadPoolExecutor mExecutor;
+    // bytes as received on the wire and after decompression
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    private final AtomicLong mDecodedBytes = new AtomicLong();
+
+    private HttpTransport(Context context) {
+        final Resources res = context.getResources();
+        final int connectTimeout = res.getInteger(R.integer.http_connect_timeout);
+        final int readTimeout = res.getInteger(R.integer.http_read_timeout);
+        final int maxPerHost = Math.max(1, res.getInteger(R.integer.http_max_connections_per_host));
+        mKeepAliveTimeout = res.getInteger(R.integer.http_keep_alive_timeout);
+        mFetchDeadline = res.getInteger(R.integer.http_fetch_deadline);
+
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, readTimeout);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxPerHost));
+        ConnManagerParams.setMaxTotalConnections(params, maxPerHost * 2);
+        // how long to wait for a free pooled connection
+        ConnManagerParams.setTimeout(params, connectTimeout);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        mConnectionManager = new ThreadSafeClientConnManager(params, registry);
+        mClient = new DefaultHttpClient(mConnectionManager, params);
+        mClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                // honor the server timeout if it is shorter than ours
+                HeaderElementIterator it = new BasicHeaderElementIterator(
+                        response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                while (it.hasNext()) {
+                    HeaderElement he = it.nextElement();
+                    if ("timeout".equalsIgnoreCase(he.getName()) && he.getValue() != null) {
+                        try {
+                            return Math.min(Long.parseLong(he.getValue()) * 1000, mKeepAliveTimeout);
+                        } catch (NumberFormatException ignored) {
+                        }
+                    }
+                }
+                return mKeepAliveTimeout;
+            }
+        });
+        mClient.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context)
+                    throws HttpException, IOException {
+                if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
+                    request.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP + ", " + ENCODING_DEFLATE);
+                }
+            }
+        });
+        mClient.addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context)
+                    throws HttpException, IOException {
+                HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    response.setEntity(new DecodingEntity(entity));
+                }
+            }
+        });
+
+        // one worker per pooled connection - more would just wait for a free one
+        mExecutor = new ThreadPoolExecutor(maxPerHost * 2, maxPerHost * 2,
+                mKeepAliveTimeout, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        if (DEBUG) Log.d(TAG, "connectTimeout = " + connectTimeout + " readTimeout = " + readTimeout
+                + " maxPerHost = " + maxPerHost + " keepAlive = " + mKeepAliveTimeout);
+    }
+
+    public static synchronized HttpTransport getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new HttpTransport(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * The caller must consume the response entity or abort the request
+     * to hand the connection back to the pool.
+     */
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        // drop connections the server has most likely closed already
+        mConnectionManager.closeExpiredConnections();
+        return mClient.execute(request);
+    }
+
+    /**
+     * Worker threads used to run fetches in parallel.
+     */
+    public ExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("  received bytes = " + mReceivedBytes.get());
+        pw.println("  decoded bytes = " + mDecodedBytes.get());
+    }
+
+    /**
+     * Max time in ms a set of parallel fetches may take together.
+     */
+    public long getFetchDeadline() {
+        return mFetchDeadline;
+    }
+
+    /**
+     * Transparently decompresses gzip and deflate encoded responses
+     * and counts the bytes before and after decoding.
+     */
+    private class DecodingEntity extends HttpEntityWrapper {
+        private InputStream mContent;
+
+        DecodingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (mContent == null) {
+                InputStream in = new CountingInputStream(wrappedEntity.getContent(), mReceivedBytes);
+                String encoding = getEncoding();
+                if (ENCODING_GZIP.equals(encoding)) {
+                    in = new GZIPInputStream(in);
+                } else if (ENCODING_DEFLATE.equals(encoding)) {
+                    in = createInflaterStream(in);
+                }
+                mContent = new CountingInputStream(in, mDecodedBytes);
+            }
+            return mContent;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            // content is handed out decoded
+            return getEncoding() != null ? null : wrappedEntity.getContentEncoding();
+        }
+
+        @Override
+        public long getContentLength() {
+            return getEncoding() != null ? -1 : wrappedEntity.getContentLength();
+        }
+
+        private String getEncoding() {
+            Header header = wrappedEntity.getContentEncoding();
+            if (header == null) {
+                return null;
+            }
+            String value = header.getValue().trim().toLowerCase(Locale.US);
+            if (ENCODING_GZIP.equals(value) || "x-gzip".equals(value)) {
+                return ENCODING_GZIP;
+            }
+            if (ENCODING_DEFLATE.equals(value)) {
+                return ENCODING_DEFLATE;
+            }
+            return null;
+        }
+    }
+
+    // deflate is supposed to be zlib wrapped but some servers send raw deflate
+    private static InputStream createInflaterStream(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        boolean zlib = first != -1 && second != -1
+                && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+        return new InflaterInputStream(buffered, new Inflater(!zlib));
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong mCounter;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCounter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCounter.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            if (skipped > 0) {
+                mCounter.addAndGet(skipped);
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
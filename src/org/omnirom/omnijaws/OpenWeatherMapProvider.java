@@ -16,6 +16,8 @@
 
 package org.omnirom.omnijaws;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -33,6 +35,8 @@ import android.content.res.Resources;
 import android.location.Location;
 import android.net.Uri;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 public class OpenWeatherMapProvider extends AbstractWeatherProvider {
@@ -106,113 +110,272 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
         return handleWeatherRequest(selection, metric);
     }
 
-    private WeatherInfo handleWeatherRequest(String selection, boolean metric) {
+    private WeatherInfo handleWeatherRequest(String selection, final boolean metric) {
         if (!mHasAPIKey) {
             return null;
         }
-        mRequestNumber++;
         String units = metric ? "metric" : "imperial";
         String locale = getLanguageCode();
+        mRequestNumber++;
         String conditionUrl = String.format(Locale.US, URL_WEATHER, selection, units, locale, getAPIKey());
-        String conditionResponse = retrieve(conditionUrl);
-        if (conditionResponse == null) {
-            return null;
-        }
-        log(TAG, "Condition URL = " + conditionUrl + " returning a response of " + conditionResponse);
-
         mRequestNumber++;
         String forecastUrl = String.format(Locale.US, URL_FORECAST, selection, units, locale, getAPIKey());
-        String forecastResponse = retrieve(forecastUrl);
-        if (forecastResponse == null) {
+
+        Request<CurrentConditions> conditionRequest = new Request<CurrentConditions>(conditionUrl,
+                new ResponseParser<CurrentConditions>() {
+                    @Override
+                    public CurrentConditions parse(Reader reader) throws IOException {
+                        return parseConditions(new JsonReader(reader));
+                    }
+                });
+        Request<ArrayList<DayForecast>> forecastRequest = new Request<ArrayList<DayForecast>>(forecastUrl,
+                new ResponseParser<ArrayList<DayForecast>>() {
+                    @Override
+                    public ArrayList<DayForecast> parse(Reader reader) throws IOException {
+                        return parseForecasts(new JsonReader(reader), metric);
+                    }
+                });
+
+        // conditions and forecast are independent so fetch them together
+        if (!retrieve(conditionRequest, forecastRequest)) {
+            Log.w(TAG, "Failed to retrieve weather data (selection = " + selection
+                    + ", lang = " + locale + ")");
             return null;
         }
-        log(TAG, "Forcast URL = " + forecastUrl + " returning a response of " + forecastResponse);
+        log(TAG, "Condition URL = " + conditionUrl + " Forecast URL = " + forecastUrl);
 
-        try {
-            JSONObject conditions = new JSONObject(conditionResponse);
-            JSONObject weather = conditions.getJSONArray("weather").getJSONObject(0);
-            JSONObject conditionData = conditions.getJSONObject("main");
-            JSONObject windData = conditions.getJSONObject("wind");
-            ArrayList<DayForecast> forecasts =
-                    parseForecasts(new JSONObject(forecastResponse).getJSONArray("list"), metric);
-            String localizedCityName = conditions.getString("name");
-            float windSpeed = (float) windData.getDouble("speed");
-            if (metric) {
-                // speeds are in m/s so convert to our common metric unit km/h
-                windSpeed *= 3.6f;
+        CurrentConditions conditions = conditionRequest.getResult();
+        float windSpeed = (float) conditions.windSpeed;
+        if (metric) {
+            // speeds are in m/s so convert to our common metric unit km/h
+            windSpeed *= 3.6f;
+        }
+        WeatherInfo w = new WeatherInfo(mContext, conditions.id, conditions.city,
+                /* condition */ conditions.weather.main,
+                /* conditionCode */ mapConditionIconToCode(
+                        conditions.weather.icon, conditions.weather.id),
+                /* temperature */ sanitizeTemperature(conditions.temperature, metric),
+                /* humidity */ (float) conditions.humidity,
+                /* wind */ windSpeed,
+                /* windDir */ conditions.windDirection,
+                metric,
+                forecastRequest.getResult(),
+                System.currentTimeMillis());
+
+        log(TAG, "Weather updated: " + w);
+        return w;
+    }
+
+    private static class Condition {
+        String main;
+        String icon;
+        int id = -1;
+
+        boolean isValid() {
+            return main != null && icon != null && id != -1;
+        }
+    }
+
+    private static class CurrentConditions {
+        String id;
+        String city;
+        Condition weather;
+        double temperature = Double.NaN;
+        double humidity = Double.NaN;
+        double windSpeed = Double.NaN;
+        int windDirection;
+
+        boolean isValid() {
+            return id != null && city != null && weather != null && weather.isValid()
+                    && !Double.isNaN(temperature) && !Double.isNaN(humidity)
+                    && !Double.isNaN(windSpeed);
+        }
+    }
+
+    // Only the fields we need are picked from the stream - everything else is skipped
+    private CurrentConditions parseConditions(JsonReader reader) throws IOException {
+        CurrentConditions conditions = new CurrentConditions();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("weather") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                conditions.weather = readFirstCondition(reader);
+            } else if (name.equals("main") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (field.equals("temp")) {
+                        conditions.temperature = readDouble(reader);
+                    } else if (field.equals("humidity")) {
+                        conditions.humidity = readDouble(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("wind") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (field.equals("speed")) {
+                        conditions.windSpeed = readDouble(reader);
+                    } else if (field.equals("deg")) {
+                        double deg = readDouble(reader);
+                        conditions.windDirection = Double.isNaN(deg) ? 0 : (int) deg;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("id")) {
+                conditions.id = readString(reader);
+            } else if (name.equals("name")) {
+                conditions.city = readString(reader);
+            } else {
+                reader.skipValue();
             }
-            WeatherInfo w = new WeatherInfo(mContext, conditions.getString("id"), localizedCityName,
-                    /* condition */ weather.getString("main"),
-                    /* conditionCode */ mapConditionIconToCode(
-                            weather.getString("icon"), weather.getInt("id")),
-                    /* temperature */ sanitizeTemperature(conditionData.getDouble("temp"), metric),
-                    /* humidity */ (float) conditionData.getDouble("humidity"),
-                    /* wind */ windSpeed,
-                    /* windDir */ windData.has("deg") ? windData.getInt("deg") : 0,
-                    metric,
-                    forecasts,
-                    System.currentTimeMillis());
-
-            log(TAG, "Weather updated: " + w);
-            return w;
-        } catch (JSONException e) {
-            Log.w(TAG, "Received malformed weather data (selection = " + selection
-                    + ", lang = " + locale + ")", e);
         }
+        reader.endObject();
 
-        return null;
+        if (!conditions.isValid()) {
+            Log.w(TAG, "Received incomplete weather data");
+            return null;
+        }
+        return conditions;
     }
 
-    private ArrayList<DayForecast> parseForecasts(JSONArray forecasts, boolean metric) throws JSONException {
+    private ArrayList<DayForecast> parseForecasts(JsonReader reader, boolean metric) throws IOException {
         ArrayList<DayForecast> result = new ArrayList<DayForecast>();
-        int count = forecasts.length();
 
-        if (count == 0) {
-            throw new JSONException("Empty forecasts array");
-        }
-        for (int i = 0; i < count; i++) {
-            DayForecast item = null;
-            try {
-                JSONObject forecast = forecasts.getJSONObject(i);
-                JSONObject conditionData = forecast.getJSONObject("main");
-                JSONObject data = forecast.getJSONArray("weather").getJSONObject(0);
-                item = new DayForecast(
-                        /* low */ sanitizeTemperature(conditionData.getDouble("temp_min"), metric),
-                        /* high */ sanitizeTemperature(conditionData.getDouble("temp_max"), metric),
-                        /* condition */ data.getString("main"),
-                        /* conditionCode */ mapConditionIconToCode(
-                                data.getString("icon"), data.getInt("id")),
-                        "NaN",
-                        metric);
-            } catch (JSONException e) {
-                Log.w(TAG, "Invalid forecast for day " + i + " creating dummy", e);
-                item = new DayForecast(
-                        /* low */ 0,
-                        /* high */ 0,
-                        /* condition */ "",
-                        /* conditionCode */ -1,
-                        "NaN",
-                        metric);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("list") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    result.add(readForecast(reader, result.size(), metric));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
             }
-            result.add(item);
+        }
+        reader.endObject();
+
+        if (result.size() == 0) {
+            Log.w(TAG, "Empty forecasts array");
+            return null;
         }
         // clients assume there are 5  entries - so fill with dummy if needed
         if (result.size() < 5) {
             for (int i = result.size(); i < 5; i++) {
                 Log.w(TAG, "Missing forecast for day " + i + " creating dummy");
-                DayForecast item = new DayForecast(
-                        /* low */ 0,
-                        /* high */ 0,
-                        /* condition */ "",
-                        /* conditionCode */ -1,
-                        "NaN",
-                        metric);
-                result.add(item);
+                result.add(createDummyForecast(metric));
             }
         }
         return result;
     }
 
+    private DayForecast readForecast(JsonReader reader, int day, boolean metric) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            Log.w(TAG, "Invalid forecast for day " + day + " creating dummy");
+            return createDummyForecast(metric);
+        }
+        double low = Double.NaN;
+        double high = Double.NaN;
+        Condition data = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("main") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (field.equals("temp_min")) {
+                        low = readDouble(reader);
+                    } else if (field.equals("temp_max")) {
+                        high = readDouble(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("weather") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                data = readFirstCondition(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (Double.isNaN(low) || Double.isNaN(high) || data == null || !data.isValid()) {
+            Log.w(TAG, "Invalid forecast for day " + day + " creating dummy");
+            return createDummyForecast(metric);
+        }
+        return new DayForecast(
+                /* low */ sanitizeTemperature(low, metric),
+                /* high */ sanitizeTemperature(high, metric),
+                /* condition */ data.main,
+                /* conditionCode */ mapConditionIconToCode(data.icon, data.id),
+                "NaN",
+                metric);
+    }
+
+    private static DayForecast createDummyForecast(boolean metric) {
+        return new DayForecast(
+                /* low */ 0,
+                /* high */ 0,
+                /* condition */ "",
+                /* conditionCode */ -1,
+                "NaN",
+                metric);
+    }
+
+    private static Condition readFirstCondition(JsonReader reader) throws IOException {
+        Condition condition = null;
+        reader.beginArray();
+        if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            condition = new Condition();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (field.equals("main")) {
+                    condition.main = readString(reader);
+                } else if (field.equals("icon")) {
+                    condition.icon = readString(reader);
+                } else if (field.equals("id")) {
+                    double id = readDouble(reader);
+                    condition.id = Double.isNaN(id) ? -1 : (int) id;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+        return condition;
+    }
+
+    private static double readDouble(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return Double.NaN;
+        }
+        return reader.nextDouble();
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
     // OpenWeatherMap sometimes returns temperatures in Kelvin even if we ask it
     // for deg C or deg F. Detect this and convert accordingly.
     private static float sanitizeTemperature(double value, boolean metric) {
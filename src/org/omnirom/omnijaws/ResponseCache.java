@@ -0,0 +1,359 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Disk cache for provider responses. Entries are keyed by the request url
+ * without the API key and remember the validators of the response so stale
+ * entries can be revalidated with a conditional request.
+ */
+public class ResponseCache {
+    private static final String TAG = "WeatherService:ResponseCache";
+    private static final boolean DEBUG = false;
+
+    private static final String CACHE_DIR = "http";
+    private static final String API_KEY_PARAM = "appid";
+    private static final int MAGIC = 0x4f4a5243; // OJRC
+    private static final int VERSION = 1;
+    // magic + version
+    private static final int FETCH_TIME_OFFSET = 8;
+    private static final int MAX_ENTRIES = 16;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static ResponseCache sInstance;
+
+    private final File mDir;
+    private final long mTtl;
+
+    public static class Entry {
+        private final File mFile;
+        private final String mEtag;
+        private final String mLastModified;
+        private final String mCharset;
+        private final long mFetchTime;
+        private final long mBodyOffset;
+
+        private Entry(File file, String etag, String lastModified, String charset,
+                long fetchTime, long bodyOffset) {
+            mFile = file;
+            mEtag = etag;
+            mLastModified = lastModified;
+            mCharset = charset;
+            mFetchTime = fetchTime;
+            mBodyOffset = bodyOffset;
+        }
+
+        public String getEtag() {
+            return mEtag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public String getCharset() {
+            return mCharset;
+        }
+
+        public long getFetchTime() {
+            return mFetchTime;
+        }
+
+        public InputStream openBody() throws IOException {
+            FileInputStream in = new FileInputStream(mFile);
+            try {
+                long skipped = 0;
+                while (skipped < mBodyOffset) {
+                    long count = in.skip(mBodyOffset - skipped);
+                    if (count <= 0) {
+                        throw new IOException("Truncated cache entry " + mFile);
+                    }
+                    skipped += count;
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            return new BufferedInputStream(in);
+        }
+    }
+
+    /**
+     * Copies everything read from the response into a new cache entry.
+     * The entry only replaces the old one on {@link #commit}.
+     */
+    public class Editor {
+        private final File mTarget;
+        private final File mTemp;
+        private final OutputStream mOut;
+
+        private Editor(File target, String key, String etag, String lastModified,
+                String charset) throws IOException {
+            mTarget = target;
+            mTemp = File.createTempFile(target.getName(), TEMP_SUFFIX, mDir);
+            mOut = new BufferedOutputStream(new FileOutputStream(mTemp));
+            DataOutputStream header = new DataOutputStream(mOut);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(System.currentTimeMillis());
+            header.writeUTF(key);
+            header.writeUTF(etag != null ? etag : "");
+            header.writeUTF(lastModified != null ? lastModified : "");
+            header.writeUTF(charset);
+        }
+
+        public InputStream wrap(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        mOut.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        mOut.write(buffer, offset, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(long count) throws IOException {
+                    // must see all bytes to store them
+                    byte[] buffer = new byte[(int) Math.min(count, 4096)];
+                    int read = read(buffer, 0, buffer.length);
+                    return read > 0 ? read : 0;
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+        }
+
+        public void commit() {
+            try {
+                mOut.close();
+                if (!mTemp.renameTo(mTarget)) {
+                    throw new IOException("Rename failed for " + mTarget);
+                }
+                if (DEBUG) Log.d(TAG, "Stored " + mTarget.getName() + " " + mTarget.length());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to store cache entry", e);
+                mTemp.delete();
+            }
+            trim();
+        }
+
+        public void abort() {
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+            mTemp.delete();
+        }
+    }
+
+    private ResponseCache(Context context) {
+        mDir = new File(context.getCacheDir(), CACHE_DIR);
+        mTtl = context.getResources().getInteger(R.integer.http_cache_ttl);
+    }
+
+    public static synchronized ResponseCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ResponseCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return true if the entry is young enough to be used without asking the server
+     */
+    public boolean isFresh(Entry entry) {
+        long age = System.currentTimeMillis() - entry.getFetchTime();
+        return age >= 0 && age < mTtl;
+    }
+
+    public Entry get(String url) {
+        final String key = getKey(url);
+        final File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                file.delete();
+                return null;
+            }
+            long fetchTime = in.readLong();
+            if (!key.equals(in.readUTF())) {
+                // hash collision
+                return null;
+            }
+            String etag = in.readUTF();
+            String lastModified = in.readUTF();
+            String charset = in.readUTF();
+            return new Entry(file, etag.isEmpty() ? null : etag,
+                    lastModified.isEmpty() ? null : lastModified,
+                    charset, fetchTime, in.getFilePointer());
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable cache entry " + file, e);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the server confirmed that the entry is still valid.
+     */
+    public void touch(Entry entry) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(entry.mFile, "rw");
+            file.seek(FETCH_TIME_OFFSET);
+            file.writeLong(System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to update cache entry " + entry.mFile, e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return an editor for a new entry or null if it could not be created
+     */
+    public Editor edit(String url, String etag, String lastModified, String charset) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.w(TAG, "Failed to create cache dir " + mDir);
+            return null;
+        }
+        final String key = getKey(url);
+        try {
+            return new Editor(getFile(key), key, etag, lastModified, charset);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create cache entry", e);
+            return null;
+        }
+    }
+
+    public void remove(Entry entry) {
+        entry.mFile.delete();
+    }
+
+    private void trim() {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return !name.endsWith(TEMP_SUFFIX);
+            }
+        });
+        if (files == null || files.length <= MAX_ENTRIES) {
+            return;
+        }
+        List<File> entries = new ArrayList<File>(Arrays.asList(files));
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(rhs.lastModified(), lhs.lastModified());
+            }
+        });
+        for (int i = MAX_ENTRIES; i < entries.size(); i++) {
+            entries.get(i).delete();
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDir, hash(key));
+    }
+
+    // the API key rotates between requests so it must not be part of the key
+    private static String getKey(String url) {
+        Uri uri = Uri.parse(url);
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        List<String> names = new ArrayList<String>(uri.getQueryParameterNames());
+        Collections.sort(names);
+        for (String name : names) {
+            if (name.equals(API_KEY_PARAM)) {
+                continue;
+            }
+            for (String value : uri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        return builder.build().toString();
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+
+/**
+ * Read-only cursor over prebuilt rows. The rows are shared between cursors
+ * and must not be modified after they have been handed in.
+ */
+public class RowCursor extends AbstractCursor {
+    private final String[] mColumnNames;
+    private final Object[][] mRows;
+    // index into the row for each cursor column or -1 if it has no value
+    private final int[] mColumnMap;
+    // range of mRows served by this cursor
+    private final int mFirst;
+    private final int mCount;
+
+    /**
+     * @param columnNames the column names of the cursor
+     * @param rows the rows to serve
+     * @param columnMap for each column the index of its value in a row, or -1
+     */
+    public RowCursor(String[] columnNames, Object[][] rows, int[] columnMap) {
+        this(columnNames, rows, columnMap, 0, rows.length);
+    }
+
+    /**
+     * Serves only count rows starting at first.
+     */
+    public RowCursor(String[] columnNames, Object[][] rows, int[] columnMap,
+            int first, int count) {
+        if (first < 0 || count < 0 || first + count > rows.length) {
+            throw new IllegalArgumentException("Invalid row range " + first + " + " + count);
+        }
+        mColumnNames = columnNames;
+        mRows = rows;
+        mColumnMap = columnMap;
+        mFirst = first;
+        mCount = count;
+    }
+
+    /**
+     * Maps the requested projection to the indices of the given row layout.
+     */
+    public static int[] mapColumns(String[] projection, String[] rowColumns) {
+        int[] map = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            map[i] = -1;
+            for (int j = 0; j < rowColumns.length; j++) {
+                if (rowColumns[j].equals(projection[i])) {
+                    map[i] = j;
+                    break;
+                }
+            }
+        }
+        return map;
+    }
+
+    private Object get(int column) {
+        if (column < 0 || column >= mColumnNames.length) {
+            throw new CursorIndexOutOfBoundsException("Requested column: " + column
+                    + ", # of columns: " + mColumnNames.length);
+        }
+        if (mPos < 0) {
+            throw new CursorIndexOutOfBoundsException("Before first row.");
+        }
+        if (mPos >= mCount) {
+            throw new CursorIndexOutOfBoundsException("After last row.");
+        }
+        int index = mColumnMap[column];
+        return index >= 0 ? mRows[mFirst + mPos][index] : null;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = get(column);
+        return value != null ? value.toString() : null;
+    }
+
+    @Override
+    public short getShort(int column) {
+        Object value = get(column);
+        if (value == null) return 0;
+        if (value instanceof Number) return ((Number) value).shortValue();
+        return Short.parseShort(value.toString());
+    }
+
+    @Override
+    public int getInt(int column) {
+        Object value = get(column);
+        if (value == null) return 0;
+        if (value instanceof Number) return ((Number) value).intValue();
+        return Integer.parseInt(value.toString());
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = get(column);
+        if (value == null) return 0;
+        if (value instanceof Number) return ((Number) value).longValue();
+        return Long.parseLong(value.toString());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        Object value = get(column);
+        if (value == null) return 0.0f;
+        if (value instanceof Number) return ((Number) value).floatValue();
+        return Float.parseFloat(value.toString());
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = get(column);
+        if (value == null) return 0.0d;
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        return Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = get(column);
+        if (value == null) {
+            return Cursor.FIELD_TYPE_NULL;
+        } else if (value instanceof Float || value instanceof Double) {
+            return Cursor.FIELD_TYPE_FLOAT;
+        } else if (value instanceof Number) {
+            return Cursor.FIELD_TYPE_INTEGER;
+        }
+        return Cursor.FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return get(column) == null;
+    }
+}
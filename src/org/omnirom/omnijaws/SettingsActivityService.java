@@ -28,7 +28,6 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.location.LocationManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.preference.CheckBoxPreference;
@@ -47,6 +46,7 @@ import org.omnirom.omnijaws.client.OmniJawsClient;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 public class SettingsActivityService extends PreferenceActivity implements OnPreferenceChangeListener, WeatherLocationTask.Callback  {
 
@@ -65,6 +65,8 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
     private ListPreference mWeatherIconPack;
     private Preference mUpdateStatus;
     private Handler mHandler = new Handler();
+    private OmniJawsClient mWeatherClient;
+    private Future<OmniJawsClient.WeatherInfo> mLastUpdateRequest;
     protected boolean mShowIconPack;
 
     private static final String PREF_KEY_CUSTOM_LOCATION_CITY = "weather_custom_location_city";
@@ -76,6 +78,7 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mWeatherClient = new OmniJawsClient(this);
         if (getActionBar() != null) {
             getActionBar().setDisplayHomeAsUpEnabled(true);
         }
@@ -149,6 +152,16 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
         queryLastUpdateTime();
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mQueryLastUpdateTime);
+        if (mLastUpdateRequest != null) {
+            mLastUpdateRequest.cancel(false);
+            mLastUpdateRequest = null;
+        }
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -338,8 +351,7 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
 
     @Override
     public void applyLocation(WeatherInfo.WeatherLocation result) {
-        Config.setLocationId(this, result.id);
-        Config.setLocationName(this, result.city);
+        Config.edit(this).setLocation(result.id, result.city).commit();
         mLocation.setText(result.city);
         mLocation.setSummary(result.city);
         WeatherService.startUpdate(this);
@@ -380,43 +392,26 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
     }
 
     private void queryLastUpdateTime() {
-        final AsyncTask<Void, Void, Void> t = new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected void onProgressUpdate(Void... values) {
-            }
-            @Override
-            protected Void doInBackground(Void... params) {
-                final String updateTime = getLastUpdateTime();
-                SettingsActivityService.this.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mUpdateStatus.setSummary(updateTime);
-                    }
-                });
-                return null;
-            }
-        };
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                t.execute();
-            }
-        }, 2000);
+        mHandler.removeCallbacks(mQueryLastUpdateTime);
+        mHandler.postDelayed(mQueryLastUpdateTime, 2000);
     }
 
-    private String getLastUpdateTime() {
-        OmniJawsClient mWeatherClient = new OmniJawsClient(this);
-        if (mWeatherClient.isOmniJawsEnabled()) {
-            OmniJawsClient.WeatherInfo mWeatherData = null;
-            try {
-                mWeatherClient.queryWeather();
-                mWeatherData = mWeatherClient.getWeatherInfo();
-                if (mWeatherData != null) {
-                    return mWeatherData.getLastUpdateTime();
-                }
-            } catch(Exception ignored) {
+    private final Runnable mQueryLastUpdateTime = new Runnable() {
+        @Override
+        public void run() {
+            if (mLastUpdateRequest != null) {
+                mLastUpdateRequest.cancel(false);
             }
+            mLastUpdateRequest = mWeatherClient.queryWeatherAsync(
+                    new OmniJawsClient.Callback<OmniJawsClient.WeatherInfo>() {
+                @Override
+                public void onResult(OmniJawsClient.WeatherInfo weatherData) {
+                    mLastUpdateRequest = null;
+                    mUpdateStatus.setSummary(weatherData != null
+                            ? weatherData.getLastUpdateTime()
+                            : getResources().getString(R.string.service_disabled));
+                }
+            });
         }
-        return getResources().getString(R.string.service_disabled);
-    }
+    };
 }
@@ -15,25 +15,61 @@
  */
 package org.omnirom.omnijaws;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
 import org.omnirom.omnijaws.WeatherInfo.DayForecast;
 
 import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
+import android.content.res.Configuration;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class WeatherContentProvider extends ContentProvider {
     private static final String TAG = "WeatherService:WeatherContentProvider";
     private static final boolean DEBUG = false;
 
-    static WeatherInfo sCachedWeatherInfo;
+    static volatile WeatherInfo sCachedWeatherInfo;
+    // rows of the weather query in PROJECTION_DEFAULT_WEATHER order
+    private static volatile Object[][] sWeatherRows;
+    // changes whenever the cached weather changes
+    private static volatile long sWeatherVersion;
+    // locale the condition names of sWeatherRows are in
+    private static Locale sRowsLocale;
+    // changes whenever sWeatherRows is rebuilt, even if the version stays
+    private static volatile long sRowsGeneration;
+    // only available since O MR1
+    private static WeatherSharedMemory sSharedMemory;
+    // lets clients notice that the process and with it the region is gone
+    private static final Binder sSharedMemoryToken = new Binder();
+    // released once the stored weather data has been loaded
+    private static final CountDownLatch sCacheLoaded = new CountDownLatch(1);
 
     private static final int URI_TYPE_WEATHER = 1;
     private static final int URI_TYPE_SETTINGS = 2;
+    private static final int URI_TYPE_VERSION = 3;
+    private static final int URI_TYPE_WEATHER_CURRENT = 4;
+    private static final int URI_TYPE_WEATHER_FORECAST = 5;
+    private static final int URI_TYPE_WEATHER_FORECAST_DAY = 6;
 
     private static final String COLUMN_CURRENT_CITY_ID = "city_id";
     private static final String COLUMN_CURRENT_CITY = "city";
@@ -59,6 +95,8 @@ public class WeatherContentProvider extends ContentProvider {
     private static final String COLUMN_LOCATION = "location";
     private static final String COLUMN_SETUP = "setup";
 
+    private static final String COLUMN_VERSION = "version";
+
     private static final String[] PROJECTION_DEFAULT_WEATHER = new String[] {
             COLUMN_CURRENT_CITY_ID,
             COLUMN_CURRENT_CITY,
@@ -86,6 +124,44 @@ public class WeatherContentProvider extends ContentProvider {
             COLUMN_SETUP
     };
 
+    // selections understood by weather queries, everything else returns all rows
+    private static final String SELECTION_CURRENT = "current";
+    // optional selectionArgs: first and last forecast day, starting at 0
+    private static final String SELECTION_FORECAST = "forecast";
+    private static final String PARAM_LIMIT = "limit";
+
+    /**
+     * Returns weather rows and the settings needed to show them in one call.
+     * The result contains KEY_ENABLED, KEY_UNITS, KEY_VERSION and KEY_ROWS,
+     * an array with one Bundle per weather row keyed by column name.
+     * If arg is the current version the rows are left out and KEY_CHANGED is false.
+     */
+    public static final String METHOD_GET_WEATHER = "getWeather";
+    /**
+     * Like METHOD_GET_WEATHER but never returns rows.
+     */
+    public static final String METHOD_GET_VERSION = "getVersion";
+    public static final String KEY_ENABLED = "enabled";
+    public static final String KEY_UNITS = "units";
+    public static final String KEY_VERSION = "version";
+    public static final String KEY_ROWS = "rows";
+    public static final String KEY_CHANGED = "changed";
+    /**
+     * Returns a read-only WeatherSharedMemory region as KEY_SHARED_MEMORY
+     * and a binder to watch for the death of the service as KEY_TOKEN,
+     * or null if shared memory is not supported.
+     */
+    public static final String METHOD_GET_SHARED_MEMORY = "getSharedMemory";
+    public static final String KEY_SHARED_MEMORY = "shared_memory";
+    public static final String KEY_TOKEN = "token";
+
+    private static final String[] PROJECTION_DEFAULT_VERSION = new String[] {
+            COLUMN_VERSION
+    };
+
+    private static final int[] COLUMN_MAP_DEFAULT_WEATHER =
+            RowCursor.mapColumns(PROJECTION_DEFAULT_WEATHER, PROJECTION_DEFAULT_WEATHER);
+
     public static final String AUTHORITY = "org.omnirom.omnijaws.provider";
 
     private static final UriMatcher sUriMatcher;
@@ -93,17 +169,240 @@ public class WeatherContentProvider extends ContentProvider {
         sUriMatcher = new UriMatcher(URI_TYPE_WEATHER);
         sUriMatcher.addURI(AUTHORITY, "weather", URI_TYPE_WEATHER);
         sUriMatcher.addURI(AUTHORITY, "settings", URI_TYPE_SETTINGS);
+        sUriMatcher.addURI(AUTHORITY, "version", URI_TYPE_VERSION);
+        sUriMatcher.addURI(AUTHORITY, "weather/current", URI_TYPE_WEATHER_CURRENT);
+        sUriMatcher.addURI(AUTHORITY, "weather/forecast", URI_TYPE_WEATHER_FORECAST);
+        sUriMatcher.addURI(AUTHORITY, "weather/forecast/#", URI_TYPE_WEATHER_FORECAST_DAY);
     }
 
+    private static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+    private static final Uri SETTINGS_URI = Uri.withAppendedPath(CONTENT_URI, "settings");
+    private static final Uri VERSION_URI = Uri.withAppendedPath(CONTENT_URI, "version");
+    private static final Uri WEATHER_CURRENT_URI = Uri.withAppendedPath(CONTENT_URI, "weather/current");
+    private static final Uri WEATHER_FORECAST_URI = Uri.withAppendedPath(CONTENT_URI, "weather/forecast");
+
+    // settings shown by the settings query
+    private static final List<String> SETTINGS_KEYS = Arrays.asList(
+            Config.PREF_KEY_ENABLE,
+            Config.PREF_KEY_PROVIDER,
+            Config.PREF_KEY_UPDATE_INTERVAL,
+            Config.PREF_KEY_UNITS,
+            Config.PREF_KEY_CUSTOM_LOCATION,
+            Config.PREF_KEY_LOCATION_NAME);
+
     private Context mContext;
+    private Handler mHandler;
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, final String key) {
+            if (!SETTINGS_KEYS.contains(key)) {
+                return;
+            }
+            // let Config see the change first
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (Config.PREF_KEY_ENABLE.equals(key) || Config.PREF_KEY_UNITS.equals(key)) {
+                        publishUpdate(mContext);
+                    }
+                    mContext.getContentResolver().notifyChange(SETTINGS_URI, null);
+                }
+            });
+        }
+    };
 
     @Override
     public boolean onCreate() {
         mContext = getContext();
-        sCachedWeatherInfo = Config.getWeatherData(mContext);
+        mHandler = new Handler(Looper.getMainLooper());
+        PreferenceManager.getDefaultSharedPreferences(mContext)
+                .registerOnSharedPreferenceChangeListener(mPrefsListener);
+        // reading the stored data must not delay the process start
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // read before the data so it can only be too old
+                    long version = Config.getWeatherVersion(mContext);
+                    WeatherInfo weather = Config.getWeatherData(mContext);
+                    synchronized (sCacheLoaded) {
+                        // an update might have been faster
+                        if (sCacheLoaded.getCount() > 0) {
+                            setCachedWeatherInfo(mContext, weather, version);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to load stored weather", e);
+                    synchronized (sCacheLoaded) {
+                        if (sCacheLoaded.getCount() > 0) {
+                            sWeatherRows = null;
+                            sCachedWeatherInfo = null;
+                        }
+                    }
+                } finally {
+                    // queries must never wait forever, without data they return none
+                    synchronized (sCacheLoaded) {
+                        sCacheLoaded.countDown();
+                    }
+                }
+            }
+        });
         return true;
     }
 
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // condition names are localized
+        synchronized (sCacheLoaded) {
+            if (newConfig.getLocales().get(0).equals(sRowsLocale)) {
+                return;
+            }
+            if (sCacheLoaded.getCount() == 0) {
+                final Object[][] oldRows = sWeatherRows;
+                setCachedWeatherInfo(mContext, sCachedWeatherInfo);
+                if (!Arrays.deepEquals(oldRows, sWeatherRows)) {
+                    publishUpdate(mContext);
+                    notifyChangedRows(mContext, oldRows, sWeatherRows);
+                }
+            }
+        }
+    }
+
+    private static void setCachedWeatherInfo(Context context, WeatherInfo weather, long version) {
+        setCachedWeatherInfo(context, weather);
+        sWeatherVersion = version;
+        publishUpdate(context);
+    }
+
+    /**
+     * Notifies only the leaf uris whose rows differ so observers of the
+     * current condition are not woken up by forecast changes. Observers of
+     * the weather uri must watch its descendants to see them.
+     */
+    private static void notifyChangedRows(Context context, Object[][] oldRows, Object[][] newRows) {
+        final ContentResolver resolver = context.getContentResolver();
+        final int oldCount = oldRows != null ? oldRows.length : 0;
+        final int newCount = newRows != null ? newRows.length : 0;
+
+        if (oldCount == 0 || newCount == 0
+                ? oldCount != newCount : !Arrays.equals(oldRows[0], newRows[0])) {
+            if (DEBUG) Log.d(TAG, "current changed");
+            resolver.notifyChange(WEATHER_CURRENT_URI, null);
+        }
+        for (int i = 1; i < Math.max(oldCount, newCount); i++) {
+            if (i >= oldCount || i >= newCount || !Arrays.equals(oldRows[i], newRows[i])) {
+                if (DEBUG) Log.d(TAG, "forecast day " + (i - 1) + " changed");
+                resolver.notifyChange(ContentUris.withAppendedId(WEATHER_FORECAST_URI, i - 1), null);
+            }
+        }
+    }
+
+    private static void publishUpdate(Context context) {
+        publishSharedMemory(context);
+        WeatherUpdateService.notifySubscribers(context);
+    }
+
+    private static void publishSharedMemory(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) {
+            return;
+        }
+        synchronized (sCacheLoaded) {
+            if (sSharedMemory == null) {
+                sSharedMemory = WeatherSharedMemory.create();
+                if (sSharedMemory == null) {
+                    return;
+                }
+            }
+            final Config.Snapshot config = Config.getSnapshot(context);
+            sSharedMemory.publish(context, sCachedWeatherInfo, sWeatherVersion,
+                    config.isEnabled(), config.isMetric());
+        }
+    }
+
+    private static void setCachedWeatherInfo(Context context, WeatherInfo weather) {
+        sRowsLocale = context.getResources().getConfiguration().getLocales().get(0);
+        sWeatherRows = buildWeatherRows(context, weather);
+        // after the rows so a reader that sees the new generation also sees them
+        sRowsGeneration++;
+        sCachedWeatherInfo = weather;
+    }
+
+    /**
+     * Changes whenever the weather rows are rebuilt, also if only their
+     * locale changed. Read it before getWeatherBundle() so the rows are
+     * never older than the generation.
+     */
+    static long getRowsGeneration() {
+        return sRowsGeneration;
+    }
+
+    /**
+     * Builds all rows of the weather query up front so queries only
+     * need to hand them out.
+     */
+    private static Object[][] buildWeatherRows(Context context, WeatherInfo weather) {
+        if (weather == null) {
+            return null;
+        }
+        final int columns = PROJECTION_DEFAULT_WEATHER.length;
+        final ArrayList<DayForecast> forecasts = weather.getForecasts();
+        final Object[][] rows = new Object[forecasts.size() + 1][];
+
+        // current
+        Object[] row = new Object[columns];
+        row[weatherColumn(COLUMN_CURRENT_CITY_ID)] = weather.getId();
+        row[weatherColumn(COLUMN_CURRENT_CITY)] = weather.getCity();
+        row[weatherColumn(COLUMN_CURRENT_CONDITION)] = weather.getCondition();
+        row[weatherColumn(COLUMN_CURRENT_TEMPERATURE)] = weather.getTemperature();
+        row[weatherColumn(COLUMN_CURRENT_HUMIDITY)] = weather.getFormattedHumidity();
+        row[weatherColumn(COLUMN_CURRENT_WIND_SPEED)] = weather.getWindSpeed();
+        row[weatherColumn(COLUMN_CURRENT_WIND_DIRECTION)] = weather.getWindDirection();
+        row[weatherColumn(COLUMN_CURRENT_TIME_STAMP)] = weather.getTimestamp().toString();
+        row[weatherColumn(COLUMN_CURRENT_PIN_WHEEL)] = weather.getPinWheel();
+        row[weatherColumn(COLUMN_CURRENT_CONDITION_CODE)] = weather.getConditionCode();
+        rows[0] = row;
+
+        // forecast
+        for (int i = 0; i < forecasts.size(); i++) {
+            DayForecast day = forecasts.get(i);
+            row = new Object[columns];
+            row[weatherColumn(COLUMN_FORECAST_LOW)] = day.getLow();
+            row[weatherColumn(COLUMN_FORECAST_HIGH)] = day.getHigh();
+            row[weatherColumn(COLUMN_FORECAST_CONDITION)] = day.getCondition(context);
+            row[weatherColumn(COLUMN_FORECAST_CONDITION_CODE)] = day.getConditionCode();
+            row[weatherColumn(COLUMN_FORECAST_DATE)] = day.date;
+            rows[i + 1] = row;
+        }
+        return rows;
+    }
+
+    private static int weatherColumn(String name) {
+        for (int i = 0; i < PROJECTION_DEFAULT_WEATHER.length; i++) {
+            if (PROJECTION_DEFAULT_WEATHER[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column " + name);
+    }
+
+    static void awaitCachedWeatherInfo() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                sCacheLoaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public Cursor query(
             Uri uri,
@@ -113,49 +412,173 @@ public class WeatherContentProvider extends ContentProvider {
             String sortOrder) {
 
         final int projectionType = sUriMatcher.match(uri);
-        final MatrixCursor result = new MatrixCursor(resolveProjection(projection, projectionType));
 
         if (DEBUG) Log.i(TAG, "query: " + uri.toString());
 
+        awaitCachedWeatherInfo();
+
         if (projectionType == URI_TYPE_SETTINGS) {
+            final MatrixCursor result = new MatrixCursor(resolveProjection(projection, projectionType));
+            final Config.Snapshot config = Config.getSnapshot(mContext);
             result.newRow()
-                    .add(COLUMN_ENABLED, Config.isEnabled(mContext) ? 1 : 0)
-                    .add(COLUMN_PROVIDER, Config.getProviderId(mContext))
-                    .add(COLUMN_INTERVAL, Config.getUpdateInterval(mContext))
-                    .add(COLUMN_UNITS, Config.isMetric(mContext) ? 0 : 1)
-                    .add(COLUMN_LOCATION, Config.isCustomLocation(mContext) ? Config.getLocationName(mContext) : "")
+                    .add(COLUMN_ENABLED, config.isEnabled() ? 1 : 0)
+                    .add(COLUMN_PROVIDER, config.getProviderId())
+                    .add(COLUMN_INTERVAL, config.getUpdateInterval())
+                    .add(COLUMN_UNITS, config.isMetric() ? 0 : 1)
+                    .add(COLUMN_LOCATION, config.isCustomLocation() ? config.getLocationName() : "")
                     .add(COLUMN_SETUP, !Config.isSetupDone(mContext) && sCachedWeatherInfo == null ? 0 : 1);
 
             return result;
-        } else if (projectionType == URI_TYPE_WEATHER) {
-            WeatherInfo weather = sCachedWeatherInfo;
-            if (weather != null) {
-                // current
-                result.newRow()
-                        .add(COLUMN_CURRENT_CITY, weather.getCity())
-                        .add(COLUMN_CURRENT_CITY_ID, weather.getId())
-                        .add(COLUMN_CURRENT_CONDITION, weather.getCondition())
-                        .add(COLUMN_CURRENT_HUMIDITY, weather.getFormattedHumidity())
-                        .add(COLUMN_CURRENT_WIND_SPEED, weather.getWindSpeed())
-                        .add(COLUMN_CURRENT_WIND_DIRECTION, weather.getWindDirection())
-                        .add(COLUMN_CURRENT_TEMPERATURE, weather.getTemperature())
-                        .add(COLUMN_CURRENT_TIME_STAMP, weather.getTimestamp().toString())
-                        .add(COLUMN_CURRENT_PIN_WHEEL, weather.getPinWheel())
-                        .add(COLUMN_CURRENT_CONDITION_CODE, weather.getConditionCode());
-
-                // forecast
-                for (DayForecast day : weather.getForecasts()) {
-                    result.newRow()
-                            .add(COLUMN_FORECAST_CONDITION, day.getCondition(mContext))
-                            .add(COLUMN_FORECAST_LOW, day.getLow())
-                            .add(COLUMN_FORECAST_HIGH, day.getHigh())
-                            .add(COLUMN_FORECAST_CONDITION_CODE, day.getConditionCode())
-                            .add(COLUMN_FORECAST_DATE, day.date);
+        } else if (projectionType == URI_TYPE_VERSION) {
+            final MatrixCursor result = new MatrixCursor(resolveProjection(projection, projectionType));
+            result.newRow().add(COLUMN_VERSION, sWeatherVersion);
+            return result;
+        } else {
+            final Object[][] rows = sWeatherRows;
+            if (rows != null) {
+                return queryWeatherRows(rows, uri, projectionType, projection, selection,
+                        selectionArgs);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Serves the requested columns of the rows matching the uri and selection.
+     * Row 0 is the current condition, the forecast days follow.
+     */
+    private Cursor queryWeatherRows(Object[][] rows, Uri uri, int uriType, String[] projection,
+            String selection, String[] selectionArgs) {
+        int first = 0;
+        int last = rows.length - 1;
+
+        if (uriType == URI_TYPE_WEATHER_CURRENT) {
+            last = 0;
+        } else if (uriType == URI_TYPE_WEATHER_FORECAST) {
+            first = 1;
+        } else if (uriType == URI_TYPE_WEATHER_FORECAST_DAY) {
+            try {
+                first = (int) Math.min(ContentUris.parseId(uri) + 1, rows.length);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring invalid forecast day " + uri.getLastPathSegment());
+                first = rows.length;
+            }
+            last = first;
+        } else if (SELECTION_CURRENT.equals(selection)) {
+            last = 0;
+        } else if (SELECTION_FORECAST.equals(selection)) {
+            first = 1;
+            try {
+                if (selectionArgs != null && selectionArgs.length > 0) {
+                    first = Math.max(first, Integer.parseInt(selectionArgs[0]) + 1);
+                }
+                if (selectionArgs != null && selectionArgs.length > 1) {
+                    last = Math.min(last, Integer.parseInt(selectionArgs[1]) + 1);
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring invalid forecast range", e);
+            }
+        } else if (selection != null) {
+            Log.w(TAG, "Ignoring unknown selection " + selection);
+        }
+
+        int count = Math.max(Math.min(last, rows.length - 1) - first + 1, 0);
+        final String limit = uri.getQueryParameter(PARAM_LIMIT);
+        if (limit != null) {
+            try {
+                count = Math.min(count, Math.max(Integer.parseInt(limit), 0));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring invalid limit " + limit, e);
+            }
+        }
+        if (count == 0) {
+            first = 0;
+        }
+
+        if (projection == null) {
+            return new RowCursor(PROJECTION_DEFAULT_WEATHER, rows, COLUMN_MAP_DEFAULT_WEATHER,
+                    first, count);
+        }
+        return new RowCursor(projection, rows,
+                RowCursor.mapColumns(projection, PROJECTION_DEFAULT_WEATHER), first, count);
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        final boolean versionOnly = METHOD_GET_VERSION.equals(method);
+        final boolean sharedMemory = METHOD_GET_SHARED_MEMORY.equals(method);
+        if (!versionOnly && !sharedMemory && !METHOD_GET_WEATHER.equals(method)) {
+            return null;
+        }
+        // call() is not covered by the read permission of the provider
+        if (Binder.getCallingUid() != Process.myUid()) {
+            mContext.enforceCallingPermission(getReadPermission(), TAG);
+        }
+
+        awaitCachedWeatherInfo();
+
+        if (sharedMemory) {
+            synchronized (sCacheLoaded) {
+                if (sSharedMemory == null) {
+                    return null;
                 }
+                Bundle result = new Bundle();
+                result.putParcelable(KEY_SHARED_MEMORY, sSharedMemory.getSharedMemory());
+                result.putBinder(KEY_TOKEN, sSharedMemoryToken);
                 return result;
             }
         }
-        return null;
+
+        long knownVersion = -1;
+        if (arg != null) {
+            try {
+                knownVersion = Long.parseLong(arg);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring invalid version " + arg);
+            }
+        }
+        return getWeatherBundle(mContext, knownVersion, versionOnly);
+    }
+
+    /**
+     * Builds the result of METHOD_GET_WEATHER. The rows are left out if
+     * knownVersion is the current version or versionOnly is set.
+     */
+    static Bundle getWeatherBundle(Context context, long knownVersion, boolean versionOnly) {
+        final Config.Snapshot config = Config.getSnapshot(context);
+        // rows are published before the version so never pair new version with old rows
+        final long version = sWeatherVersion;
+        final Object[][] rows = sWeatherRows;
+        final boolean changed = version != knownVersion;
+        Bundle result = new Bundle();
+        result.putBoolean(KEY_ENABLED, config.isEnabled());
+        result.putInt(KEY_UNITS, config.isMetric() ? 0 : 1);
+        result.putLong(KEY_VERSION, version);
+        result.putBoolean(KEY_CHANGED, changed);
+        if (rows != null && changed && !versionOnly) {
+            Bundle[] weatherRows = new Bundle[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                weatherRows[i] = toBundle(rows[i]);
+            }
+            result.putParcelableArray(KEY_ROWS, weatherRows);
+        }
+        return result;
+    }
+
+    private static Bundle toBundle(Object[] row) {
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < row.length; i++) {
+            final String column = PROJECTION_DEFAULT_WEATHER[i];
+            final Object value = row[i];
+            if (value instanceof String) {
+                bundle.putString(column, (String) value);
+            } else if (value instanceof Integer) {
+                bundle.putInt(column, (Integer) value);
+            } else if (value instanceof Float) {
+                bundle.putFloat(column, (Float) value);
+            }
+        }
+        return bundle;
     }
 
     private String[] resolveProjection(String[] projection, int uriType) {
@@ -168,6 +591,9 @@ public class WeatherContentProvider extends ContentProvider {
 
             case URI_TYPE_SETTINGS:
                 return PROJECTION_DEFAULT_SETTINGS;
+
+            case URI_TYPE_VERSION:
+                return PROJECTION_DEFAULT_VERSION;
         }
     }
 
@@ -193,8 +619,23 @@ public class WeatherContentProvider extends ContentProvider {
 
     public static void updateCachedWeatherInfo(Context context) {
         if (DEBUG) Log.d(TAG, "updateCachedWeatherInfo()");
-        sCachedWeatherInfo = Config.getWeatherData(context);
-        context.getContentResolver().notifyChange(
-                Uri.parse("content://" + WeatherContentProvider.AUTHORITY + "/weather"), null);
+        long version = Config.getWeatherVersion(context);
+        WeatherInfo weather = Config.getWeatherData(context);
+        synchronized (sCacheLoaded) {
+            final Object[][] oldRows = sWeatherRows;
+            final long oldVersion = sWeatherVersion;
+            setCachedWeatherInfo(context, weather);
+            sWeatherVersion = version;
+            // the first update also has to create the shared memory
+            if (sCacheLoaded.getCount() > 0 || version != oldVersion
+                    || !Arrays.deepEquals(oldRows, sWeatherRows)) {
+                publishUpdate(context);
+            }
+            sCacheLoaded.countDown();
+            notifyChangedRows(context, oldRows, sWeatherRows);
+            if (version != oldVersion) {
+                context.getContentResolver().notifyChange(VERSION_URI, null);
+            }
+        }
     }
 }
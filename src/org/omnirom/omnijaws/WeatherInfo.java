@@ -16,6 +16,11 @@
 
 package org.omnirom.omnijaws;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -26,6 +31,14 @@ import android.content.res.Resources;
 public class WeatherInfo {
     private static final DecimalFormat sNoDigitsFormat = new DecimalFormat("0");
 
+    // binary snapshot format - a header followed by tagged records
+    // readers skip records they do not know and bytes appended to
+    // a known record so new fields can be added without a version bump
+    private static final int SNAPSHOT_MAGIC = 0x4f4a5749; // OJWI
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int TAG_CURRENT = 1;
+    private static final int TAG_FORECAST = 2;
+
     private Context mContext;
 
     private String id;
@@ -352,4 +365,120 @@ public class WeatherInfo {
                 humidity, wind, windDirection, metric,
                 /* forecasts */ forecasts, timestamp, pinWheel);
     }
+
+    public byte[] toByteArray() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(SNAPSHOT_VERSION);
+
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(128);
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            writeString(record, id);
+            writeString(record, city);
+            writeString(record, condition);
+            record.writeInt(conditionCode);
+            record.writeFloat(temperature);
+            record.writeFloat(humidity);
+            record.writeFloat(wind);
+            record.writeInt(windDirection);
+            record.writeBoolean(metric);
+            record.writeLong(timestamp);
+            writeString(record, pinWheel);
+            writeRecord(out, TAG_CURRENT, recordBytes);
+
+            for (DayForecast d : forecasts) {
+                recordBytes.reset();
+                record.writeFloat(d.low);
+                record.writeFloat(d.high);
+                writeString(record, d.condition);
+                record.writeInt(d.conditionCode);
+                writeString(record, d.date);
+                writeRecord(out, TAG_FORECAST, recordBytes);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // cannot happen on a memory stream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeUTF(value != null ? value : "");
+    }
+
+    private static void writeRecord(DataOutputStream out, int tag, ByteArrayOutputStream record)
+            throws IOException {
+        out.writeByte(tag);
+        out.writeShort(record.size());
+        record.writeTo(out);
+    }
+
+    public static WeatherInfo fromByteArray(Context context, byte[] input) {
+        if (input == null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(input));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readUnsignedByte() > SNAPSHOT_VERSION) {
+                return null;
+            }
+            String id = null, city = null, condition = null, pinWheel = null;
+            int conditionCode = 0, windDirection = 0;
+            float temperature = 0, humidity = 0, wind = 0;
+            boolean metric = false;
+            long timestamp = 0;
+            boolean hasCurrent = false;
+            ArrayList<DayForecast> forecasts = new ArrayList<DayForecast>();
+
+            while (in.available() > 0) {
+                int tag = in.readUnsignedByte();
+                int length = in.readUnsignedShort();
+                int end = in.available() - length;
+                if (end < 0) {
+                    return null;
+                }
+                if (tag == TAG_CURRENT) {
+                    id = in.readUTF();
+                    city = in.readUTF();
+                    condition = in.readUTF();
+                    conditionCode = in.readInt();
+                    temperature = in.readFloat();
+                    humidity = in.readFloat();
+                    wind = in.readFloat();
+                    windDirection = in.readInt();
+                    metric = in.readBoolean();
+                    timestamp = in.readLong();
+                    pinWheel = in.readUTF();
+                    hasCurrent = true;
+                } else if (tag == TAG_FORECAST) {
+                    // metric is stored in the current record which is always written first
+                    DayForecast day = new DayForecast(
+                            /* low */ in.readFloat(),
+                            /* high */ in.readFloat(),
+                            /* condition */ in.readUTF(),
+                            /* conditionCode */ in.readInt(),
+                            /* date */ in.readUTF(),
+                            metric);
+                    if (!Float.isNaN(day.low) && !Float.isNaN(day.high)) {
+                        forecasts.add(day);
+                    }
+                }
+                // skip unknown records and unknown trailing fields
+                in.skipBytes(in.available() - end);
+            }
+
+            if (!hasCurrent || forecasts.isEmpty()) {
+                return null;
+            }
+            return new WeatherInfo(context, id, city, condition,
+                    conditionCode, temperature,
+                    humidity, wind, windDirection, metric,
+                    forecasts, timestamp, pinWheel);
+        } catch (IOException e) {
+            return null;
+        }
+    }
 }
@@ -17,6 +17,8 @@
  */
 package org.omnirom.omnijaws;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Date;
 
 import android.Manifest;
@@ -52,6 +54,8 @@ public class WeatherService extends Service {
 
     private static final String EXTRA_ENABLE = "enable";
     private static final String EXTRA_ERROR = "error";
+    // version of the weather data, unchanged if the update failed
+    private static final String EXTRA_VERSION = "version";
 
     private static final int EXTRA_ERROR_NETWORK = 0;
     private static final int EXTRA_ERROR_LOCATION = 1;
@@ -140,15 +144,18 @@ public class WeatherService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Config.setUpdateError(this, false);
+        // collected and written once below
+        final Config.Editor config = Config.edit(this).setUpdateError(false);
         if (intent == null) {
             Log.w(TAG, "intent == null");
+            config.apply();
             stopSelf();
             return START_NOT_STICKY;
         }
 
         if (mRunning) {
             Log.w(TAG, "Service running ... do nothing");
+            config.apply();
             return START_STICKY;
         }
 
@@ -157,7 +164,7 @@ public class WeatherService extends Service {
             if (ACTION_ENABLE.equals(intent.getAction())) {
                 boolean enable = intent.getBooleanExtra(EXTRA_ENABLE, false);
                 if (DEBUG) Log.d(TAG, "Set enablement " + enable);
-                Config.setEnabled(this, enable);
+                config.setEnabled(enable).commit();
                 if (!enable) {
                     cancelUpdate(this);
                 }
@@ -178,7 +185,7 @@ public class WeatherService extends Service {
                 Intent errorIntent = new Intent(ACTION_ERROR);
                 errorIntent.putExtra(EXTRA_ERROR, EXTRA_ERROR_LOCATION);
                 sendBroadcast(errorIntent);
-                Config.setUpdateError(this, true);
+                config.setUpdateError(true);
                 return START_STICKY;
             }
 
@@ -187,16 +194,19 @@ public class WeatherService extends Service {
                 Intent errorIntent = new Intent(ACTION_ERROR);
                 errorIntent.putExtra(EXTRA_ERROR, EXTRA_ERROR_NETWORK);
                 sendBroadcast(errorIntent);
-                Config.setUpdateError(this, true);
+                config.setUpdateError(true);
                 return START_STICKY;
             }
 
             if (ACTION_ALARM.equals(intent.getAction())) {
-                Config.setLastAlarmTime(this);
+                config.setLastAlarmTime();
             }
+            // must be published before the update can report an error
+            config.apply();
             if (DEBUG) Log.d(TAG, "updateWeather");
             updateWeather();
         } finally {
+            config.apply();
             mWakeLock.release();
         }
 
@@ -210,6 +220,15 @@ public class WeatherService extends Service {
         unregisterScreenStateListener();
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("WeatherService:");
+        pw.println("  enabled = " + Config.isEnabled(this));
+        pw.println("  last update = " + new Date(Config.getLastUpdateTime(this)));
+        pw.println("HttpTransport:");
+        HttpTransport.getInstance(this).dump(pw);
+    }
+
     private boolean isNetworkAvailable() {
         ConnectivityManager cm = (ConnectivityManager)this.getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo info = cm.getActiveNetworkInfo();
@@ -289,14 +308,16 @@ public class WeatherService extends Service {
                     mRunning = true;
                     mWakeLock.acquire();
                     AbstractWeatherProvider provider = Config.getProvider(WeatherService.this);
+                    // same settings for all retries
+                    final Config.Snapshot config = Config.getSnapshot(WeatherService.this);
                     int i = 0;
                     // retry max 3 times
                     while(i < RETRY_MAX_NUM) {
-                        if (!Config.isCustomLocation(WeatherService.this)) {
+                        if (!config.isCustomLocation()) {
                             if (checkPermissions()) {
                                 Location location = getCurrentLocation();
                                 if (location != null) {
-                                    w = provider.getLocationWeather(location, Config.isMetric(WeatherService.this));
+                                    w = provider.getLocationWeather(location, config.isMetric());
                                 } else {
                                     Log.w(TAG, "no location");
                                     // we are outa here
@@ -307,8 +328,8 @@ public class WeatherService extends Service {
                                 // we are outa here
                                 break;
                             }
-                        } else if (Config.getLocationId(WeatherService.this) != null){
-                            w = provider.getCustomWeather(Config.getLocationId(WeatherService.this), Config.isMetric(WeatherService.this));
+                        } else if (config.getLocationId() != null){
+                            w = provider.getCustomWeather(config.getLocationId(), config.isMetric());
                         } else {
                             Log.w(TAG, "no valid custom location");
                             // we are outa here
@@ -336,10 +357,11 @@ public class WeatherService extends Service {
                 } finally {
                     if (w == null) {
                         // error
-                        Config.setUpdateError(WeatherService.this, true);
+                        Config.edit(WeatherService.this).setUpdateError(true).apply();
                     }
                     // send broadcast that something has changed
                     Intent updateIntent = new Intent(ACTION_BROADCAST);
+                    updateIntent.putExtra(EXTRA_VERSION, Config.getWeatherVersion(WeatherService.this));
                     sendBroadcast(updateIntent);
                     mWakeLock.release();
                     mRunning = false;
@@ -0,0 +1,139 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.omnirom.omnijaws.WeatherInfo.DayForecast;
+import org.omnirom.omnijaws.client.WeatherSharedLayout;
+
+import android.content.Context;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+/**
+ * Publishes the current weather as a fixed layout record in shared memory.
+ * Clients map the region read-only once and read it without a binder call.
+ * The layout is described by {@link WeatherSharedLayout}.
+ */
+public class WeatherSharedMemory {
+    private static final String TAG = "WeatherService:WeatherSharedMemory";
+    private static final boolean DEBUG = false;
+
+    private final SharedMemory mMemory;
+    private final ByteBuffer mBuffer;
+
+    private WeatherSharedMemory(SharedMemory memory, ByteBuffer buffer) {
+        mMemory = memory;
+        mBuffer = buffer;
+    }
+
+    /**
+     * @return the region or null if shared memory is not available
+     */
+    public static WeatherSharedMemory create() {
+        try {
+            SharedMemory memory = SharedMemory.create(TAG, WeatherSharedLayout.REGION_SIZE);
+            ByteBuffer buffer = memory.mapReadWrite();
+            // mappings made by clients can only be read-only from now on
+            memory.setProtect(OsConstants.PROT_READ);
+            buffer.putInt(0, WeatherSharedLayout.MAGIC);
+            buffer.putInt(4, WeatherSharedLayout.LAYOUT_VERSION);
+            buffer.putLong(WeatherSharedLayout.SEQUENCE_OFFSET, 0);
+            // no valid record until the first publish
+            buffer.putInt(WeatherSharedLayout.LENGTH_OFFSET, 0);
+            return new WeatherSharedMemory(memory, buffer);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Failed to create shared memory", e);
+            return null;
+        }
+    }
+
+    /**
+     * The region to hand out to clients.
+     */
+    public SharedMemory getSharedMemory() {
+        return mMemory;
+    }
+
+    public synchronized void publish(Context context, WeatherInfo weather, long version,
+            boolean enabled, boolean metric) {
+        final long sequence = mBuffer.getLong(WeatherSharedLayout.SEQUENCE_OFFSET);
+        mBuffer.putLong(WeatherSharedLayout.SEQUENCE_OFFSET, sequence + 1);
+
+        int flags = (enabled ? WeatherSharedLayout.FLAG_ENABLED : 0)
+                | (metric ? WeatherSharedLayout.FLAG_METRIC : 0);
+        mBuffer.position(WeatherSharedLayout.RECORD_OFFSET);
+        mBuffer.putLong(version);
+        if (weather == null) {
+            mBuffer.putInt(flags);
+        } else {
+            mBuffer.putInt(flags | WeatherSharedLayout.FLAG_HAS_DATA);
+            mBuffer.putLong(weather.getTimestamp());
+            mBuffer.putFloat(weather.getTemperature());
+            mBuffer.putFloat(weather.getWindSpeed());
+            mBuffer.putInt(weather.getWindDirection());
+            mBuffer.putInt(weather.getConditionCode());
+            putString(weather.getCity());
+            putString(weather.getCondition());
+            putString(weather.getFormattedHumidity());
+            putString(weather.getPinWheel());
+
+            List<DayForecast> forecasts = weather.getForecasts();
+            int count = Math.min(forecasts.size(), WeatherSharedLayout.MAX_FORECASTS);
+            mBuffer.putInt(count);
+            for (int i = 0; i < count; i++) {
+                DayForecast day = forecasts.get(i);
+                mBuffer.putFloat(day.getLow());
+                mBuffer.putFloat(day.getHigh());
+                mBuffer.putInt(day.getConditionCode());
+                putString(day.getCondition(context));
+                putString(day.date);
+            }
+        }
+
+        ByteBuffer record = mBuffer.duplicate();
+        record.flip();
+        record.position(WeatherSharedLayout.RECORD_OFFSET);
+        mBuffer.putInt(WeatherSharedLayout.LENGTH_OFFSET, record.remaining());
+        mBuffer.putInt(WeatherSharedLayout.CHECKSUM_OFFSET, WeatherSharedLayout.checksum(record));
+
+        mBuffer.putLong(WeatherSharedLayout.SEQUENCE_OFFSET, sequence + 2);
+        if (DEBUG) Log.d(TAG, "Published version " + version + " sequence " + (sequence + 2));
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int length = bytes.length;
+        if (length > WeatherSharedLayout.STRING_SIZE - 2) {
+            length = WeatherSharedLayout.STRING_SIZE - 2;
+            // do not cut a multi byte character in half
+            while (length > 0 && (bytes[length] & 0xc0) == 0x80) {
+                length--;
+            }
+        }
+        final int start = mBuffer.position();
+        mBuffer.putShort((short) length);
+        mBuffer.put(bytes, 0, length);
+        mBuffer.position(start + WeatherSharedLayout.STRING_SIZE);
+    }
+}
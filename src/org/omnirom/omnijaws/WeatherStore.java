@@ -0,0 +1,200 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Keeps the last weather snapshot in its own file so weather updates
+ * do not rewrite the settings in the shared preferences.
+ * Writes go to a temp file that is renamed over the old one.
+ * Every new or cleared snapshot gets a higher version number.
+ */
+public class WeatherStore {
+    private static final String TAG = "WeatherService:WeatherStore";
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "weather.snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4f4a5753; // OJWS
+    private static final int VERSION = 2;
+    // no snapshot version
+    private static final int VERSION_1 = 1;
+
+    private static WeatherStore sInstance;
+
+    private final File mFile;
+    private final boolean mSync;
+    private boolean mLoaded;
+    // WeatherInfo.toByteArray() of the stored snapshot
+    private byte[] mData;
+    private long mLastUpdate;
+    private long mVersion;
+
+    private WeatherStore(Context context) {
+        mFile = new File(context.getNoBackupFilesDir(), FILE_NAME);
+        mSync = context.getResources().getBoolean(R.bool.weather_store_sync);
+    }
+
+    public static synchronized WeatherStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WeatherStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public synchronized boolean exists() {
+        loadIfNeeded();
+        return mData != null;
+    }
+
+    public synchronized WeatherInfo read(Context context) {
+        loadIfNeeded();
+        return WeatherInfo.fromByteArray(context, mData);
+    }
+
+    public synchronized long getLastUpdateTime() {
+        loadIfNeeded();
+        return mLastUpdate;
+    }
+
+    /**
+     * @return the version of the current snapshot, it only ever grows
+     */
+    public synchronized long getVersion() {
+        loadIfNeeded();
+        return mVersion;
+    }
+
+    public synchronized void write(WeatherInfo data, long updateTime) {
+        loadIfNeeded();
+        write(data.toByteArray(), updateTime, mVersion + 1);
+    }
+
+    public synchronized void setLastUpdateTime(long updateTime) {
+        loadIfNeeded();
+        if (mData != null) {
+            write(mData, updateTime, mVersion);
+        }
+    }
+
+    public synchronized void clear() {
+        loadIfNeeded();
+        if (mData == null) {
+            return;
+        }
+        // keep the file so the version does not start over
+        write(null, 0, mVersion + 1);
+    }
+
+    private void write(byte[] data, long updateTime, long version) {
+        final File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(updateTime);
+            out.writeLong(version);
+            if (data != null) {
+                out.writeInt(data.length);
+                out.write(data);
+            } else {
+                out.writeInt(0);
+            }
+            out.flush();
+            if (mSync) {
+                fos.getFD().sync();
+            }
+            fos.close();
+            fos = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Rename failed for " + mFile);
+            }
+            mData = data;
+            mLastUpdate = updateTime;
+            mVersion = version;
+            mLoaded = true;
+            if (DEBUG) Log.d(TAG, "Stored snapshot " + version);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store weather snapshot", e);
+            temp.delete();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mFile));
+            int version;
+            if (in.readInt() != MAGIC
+                    || ((version = in.readInt()) != VERSION && version != VERSION_1)) {
+                Log.w(TAG, "Ignoring snapshot with unknown format");
+                return;
+            }
+            long updateTime = in.readLong();
+            mVersion = version == VERSION_1 ? 1 : in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > mFile.length()) {
+                Log.w(TAG, "Ignoring damaged snapshot");
+                return;
+            }
+            if (length == 0) {
+                // cleared
+                return;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            mData = data;
+            mLastUpdate = updateTime;
+        } catch (FileNotFoundException e) {
+            // nothing stored yet
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read weather snapshot", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
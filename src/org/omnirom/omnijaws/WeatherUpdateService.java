@@ -0,0 +1,142 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Bound service that pushes weather changes to registered callbacks
+ * so clients do not need to listen for the update broadcast and
+ * query the provider afterwards.
+ */
+public class WeatherUpdateService extends Service {
+    private static final String TAG = "WeatherService:WeatherUpdateService";
+    private static final boolean DEBUG = false;
+
+    private static final RemoteCallbackList<IWeatherCallback> sCallbacks =
+            new RemoteCallbackList<IWeatherCallback>();
+
+    // cookie of a registered callback
+    private static class Subscriber {
+        long mVersion;
+        // generation of the rows last sent, rows of the same version are
+        // rebuilt when the locale changes
+        long mRowsGeneration;
+
+        Subscriber(long version, long rowsGeneration) {
+            mVersion = version;
+            mRowsGeneration = rowsGeneration;
+        }
+    }
+
+    private final IWeatherService.Stub mBinder = new IWeatherService.Stub() {
+        @Override
+        public void registerCallback(IWeatherCallback callback, long knownVersion) {
+            if (callback == null) {
+                return;
+            }
+            WeatherContentProvider.awaitCachedWeatherInfo();
+            final Subscriber subscriber = new Subscriber(knownVersion,
+                    WeatherContentProvider.getRowsGeneration());
+            synchronized (sCallbacks) {
+                if (!sCallbacks.register(callback, subscriber)) {
+                    return;
+                }
+                Bundle weather = WeatherContentProvider.getWeatherBundle(WeatherUpdateService.this,
+                        knownVersion, false);
+                if (weather.getBoolean(WeatherContentProvider.KEY_CHANGED)) {
+                    subscriber.mVersion = weather.getLong(WeatherContentProvider.KEY_VERSION);
+                    try {
+                        callback.onWeatherChanged(weather);
+                    } catch (RemoteException e) {
+                        // removed by the callback list once it notices
+                    }
+                }
+            }
+            if (DEBUG) Log.d(TAG, "registerCallback " + callback.asBinder());
+        }
+
+        @Override
+        public void unregisterCallback(IWeatherCallback callback) {
+            if (callback == null) {
+                return;
+            }
+            synchronized (sCallbacks) {
+                sCallbacks.unregister(callback);
+            }
+            if (DEBUG) Log.d(TAG, "unregisterCallback " + callback.asBinder());
+        }
+    };
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    /**
+     * Sends the current weather to all callbacks. Callbacks that already
+     * have the current rows only get the settings.
+     */
+    static void notifySubscribers(Context context) {
+        synchronized (sCallbacks) {
+            final int count = sCallbacks.beginBroadcast();
+            if (DEBUG) Log.d(TAG, "notifySubscribers " + count);
+            try {
+                // the same bundle goes to all callbacks of one kind
+                Bundle withRows = null;
+                Bundle withoutRows = null;
+                final long rowsGeneration = WeatherContentProvider.getRowsGeneration();
+                for (int i = 0; i < count; i++) {
+                    final Subscriber subscriber = (Subscriber) sCallbacks.getBroadcastCookie(i);
+                    final Bundle weather;
+                    if (withRows == null) {
+                        withRows = WeatherContentProvider.getWeatherBundle(context, -1, false);
+                    }
+                    final long version = withRows.getLong(WeatherContentProvider.KEY_VERSION);
+                    if (subscriber.mVersion != version
+                            || subscriber.mRowsGeneration != rowsGeneration) {
+                        weather = withRows;
+                        subscriber.mVersion = version;
+                        subscriber.mRowsGeneration = rowsGeneration;
+                    } else {
+                        if (withoutRows == null) {
+                            withoutRows = new Bundle(withRows);
+                            withoutRows.remove(WeatherContentProvider.KEY_ROWS);
+                            withoutRows.putBoolean(WeatherContentProvider.KEY_CHANGED, false);
+                        }
+                        weather = withoutRows;
+                    }
+                    try {
+                        sCallbacks.getBroadcastItem(i).onWeatherChanged(weather);
+                    } catch (RemoteException e) {
+                        // removed by the callback list once it notices
+                    }
+                }
+            } finally {
+                sCallbacks.finishBroadcast();
+            }
+        }
+    }
+}
@@ -17,25 +17,46 @@
 */
 package org.omnirom.omnijaws.client;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.text.TextUtils;
 import android.util.Log;
 
-import org.omnirom.omnijaws.Config;
-import org.omnirom.omnijaws.R;
-
+/**
+ * Client side access to the weather service. Weather and settings are
+ * cached process wide and shared by all client instances. The cache is
+ * invalidated by a content observer on the provider so reads only cost
+ * a provider round trip after the service published something new.
+ */
 public class OmniJawsClient {
     private static final String TAG = "WeatherService:OmniJawsClient";
     private static final boolean DEBUG = false;
@@ -46,7 +67,7 @@ public class OmniJawsClient {
             = Uri.parse("content://org.omnirom.omnijaws.provider/settings");
 
     private static final String ICON_PACKAGE_DEFAULT = "org.omnirom.omnijaws";
-    private static final String ICON_PREFIX_DEFAULT = "weather";
+    private static final String ICON_PREFIX_DEFAULT = "outline";
 
     public static final String[] WEATHER_PROJECTION = new String[]{
             "city",
@@ -61,16 +82,58 @@ public class OmniJawsClient {
             "forecast_condition",
             "forecast_condition_code",
             "time_stamp",
-            "forecast_date"
+            "forecast_date",
+            "pin_wheel"
     };
 
-    final String[] SETTINGS_PROJECTION = new String[] {
+    // returns weather rows and settings in one round trip
+    private static final String METHOD_GET_WEATHER = "getWeather";
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_UNITS = "units";
+    private static final String KEY_ROWS = "rows";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_CHANGED = "changed";
+    private static final String METHOD_GET_SHARED_MEMORY = "getSharedMemory";
+    private static final String KEY_SHARED_MEMORY = "shared_memory";
+    private static final String KEY_TOKEN = "token";
+    private static final int SHARED_READ_RETRIES = 3;
+
+    static final String[] SETTINGS_PROJECTION = new String[] {
             "enabled",
             "units"
     };
 
-    private static final DecimalFormat sNoDigitsFormat = new DecimalFormat("0");
+    // key of the weather request in the executor
+    private static final String REQUEST_WEATHER = "weather";
+
+    // formatted values are mostly small numbers, their strings are kept around
+    private static final int FORMAT_CACHE_MIN = -100;
+    private static final int FORMAT_CACHE_SIZE = 301;
+    // the format and the cached values use the digits of this locale
+    private static final Object sFormatLock = new Object();
+    private static Locale sFormatLocale;
+    private static DecimalFormat sNoDigitsFormat;
+    private static String[] sFormattedValues;
+    private static final String[] sFormattedDirections = new String[361];
 
+    public interface Callback<T> {
+        /**
+         * Called on the main thread with the result or null if the request failed.
+         */
+        void onResult(T result);
+    }
+
+    public interface OmniJawsObserver {
+        /**
+         * Called on the main thread after the cached weather was reloaded.
+         */
+        void weatherUpdated();
+    }
+
+    /**
+     * Instances handed out by {@link #getWeatherInfo} are shared between
+     * all clients of the process and must not be modified.
+     */
     public static class WeatherInfo {
         public String city;
         public String windSpeed;
@@ -83,6 +146,7 @@ public class OmniJawsClient {
         public List<DayForecast> forecasts;
         public String tempUnits;
         public String windUnits;
+        public String pinWheel;
 
         public String toString() {
             return city + ":" + new Date(timeStamp) + ": " + windSpeed + ":" + windDirection + ":" +conditionCode + ":" + temp + ":" + humidity + ":" + condition + ":" + tempUnits + ":" + windUnits + ": " + forecasts;
@@ -106,18 +170,106 @@ public class OmniJawsClient {
         }
     }
 
+    // weather and settings as read from the service, replaced as a whole
+    private static class State {
+        final WeatherInfo mInfo;
+        final boolean mEnabled;
+        final boolean mMetric;
+        // version and locale of mInfo
+        final long mVersion;
+        final Locale mLocale;
+
+        State(WeatherInfo info, boolean enabled, boolean metric, long version, Locale locale) {
+            mInfo = info;
+            mEnabled = enabled;
+            mMetric = metric;
+            mVersion = version;
+            mLocale = locale;
+        }
+    }
+
+    // guards replacing sState, never held across calls to the service
+    private static final Object sLock = new Object();
+    private static volatile State sState;
+    // counts the changes seen by the content observer
+    private static final AtomicLong sChanges = new AtomicLong();
+    // value of sChanges before the data in sState was read
+    private static long sLoadedChanges = -1;
+    private static Context sAppContext;
+    private static ContentObserver sContentObserver;
+    private static Handler sMainHandler;
+    private static RequestExecutor sExecutor;
+    private static final ArrayList<OmniJawsObserver> sObservers = new ArrayList<OmniJawsObserver>();
+    // read-only mapping of the service snapshot, dropped when the service dies
+    private static volatile ByteBuffer sSharedBuffer;
+
     private Context mContext;
-    private WeatherInfo mCachedInfo;
-    private boolean mEnabled;
-    private boolean mMetric;
+    private boolean mInstalled;
+    private Resources mRes;
+    private String mPackageName;
+    private String mIconPrefix;
+    private String mSettingIconPackage;
 
     public OmniJawsClient(Context context) {
         mContext = context;
-        mEnabled = isOmniJawsServiceInstalled();
+        mInstalled = isAvailableApp(SERVICE_PACKAGE);
+        if (mInstalled) {
+            registerContentObserver(context);
+        }
+        loadDefaultIconsPackage();
+    }
+
+    private static void registerContentObserver(Context context) {
+        synchronized (sLock) {
+            if (sContentObserver != null) {
+                return;
+            }
+            sAppContext = context.getApplicationContext();
+            sMainHandler = new Handler(Looper.getMainLooper());
+            sExecutor = new RequestExecutor();
+            sContentObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    if (DEBUG) Log.d(TAG, "onChange " + uri);
+                    sChanges.incrementAndGet();
+                    boolean observed;
+                    synchronized (sObservers) {
+                        observed = !sObservers.isEmpty();
+                    }
+                    if (observed) {
+                        refresh(sAppContext);
+                    }
+                }
+            };
+            // the provider only notifies the parts that changed, every one
+            // of them just counts as a change
+            sAppContext.getContentResolver().registerContentObserver(WEATHER_URI, true,
+                    sContentObserver);
+            sAppContext.getContentResolver().registerContentObserver(SETTINGS_URI, false,
+                    sContentObserver);
+        }
+    }
+
+    public void addObserver(OmniJawsObserver observer) {
+        synchronized (sObservers) {
+            if (!sObservers.contains(observer)) {
+                sObservers.add(observer);
+            }
+        }
+    }
+
+    public void removeObserver(OmniJawsObserver observer) {
+        synchronized (sObservers) {
+            sObservers.remove(observer);
+        }
+    }
+
+    public void updateWeather() {
+        updateWeather(false);
     }
 
     public void updateWeather(boolean force) {
-        if (mEnabled) {
+        if (mInstalled) {
             Intent updateIntent = new Intent(Intent.ACTION_MAIN)
                     .setClassName(SERVICE_PACKAGE, SERVICE_PACKAGE + ".WeatherService");
             updateIntent.setAction(SERVICE_PACKAGE + ".ACTION_UPDATE");
@@ -127,7 +279,7 @@ public class OmniJawsClient {
     }
 
     public void startSettings() {
-        if (mEnabled) {
+        if (mInstalled) {
             Intent settings = new Intent(Intent.ACTION_MAIN)
                     .setClassName(SERVICE_PACKAGE, SERVICE_PACKAGE + ".SettingsActivity");
             mContext.startActivity(settings);
@@ -135,7 +287,7 @@ public class OmniJawsClient {
     }
 
     public Intent getSettingsIntent() {
-        if (mEnabled) {
+        if (mInstalled) {
             Intent settings = new Intent(Intent.ACTION_MAIN)
                     .setClassName(SERVICE_PACKAGE, SERVICE_PACKAGE + ".SettingsActivity");
             return settings;
@@ -143,113 +295,571 @@ public class OmniJawsClient {
         return null;
     }
 
+    /**
+     * The cached weather without talking to the service. Call
+     * {@link #queryWeather} or {@link #refresh} to bring it up to date.
+     */
     public WeatherInfo getWeatherInfo() {
-        return mCachedInfo;
+        final State state = sState;
+        return state != null && state.mEnabled ? state.mInfo : null;
     }
 
-    private static String getFormattedValue(float value) {
+    static String getFormattedValue(float value) {
         if (Float.isNaN(value)) {
             return "-";
         }
-        String formatted = sNoDigitsFormat.format(value);
-        if (formatted.equals("-0")) {
-            formatted = "0";
+        // same rounding as the decimal format
+        final double rounded = Math.rint(value);
+        final int index = (int) rounded - FORMAT_CACHE_MIN;
+        final boolean cached = rounded >= FORMAT_CACHE_MIN && index < FORMAT_CACHE_SIZE;
+        synchronized (sFormatLock) {
+            final Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+            if (!locale.equals(sFormatLocale)) {
+                sFormatLocale = locale;
+                sNoDigitsFormat = new DecimalFormat("0", DecimalFormatSymbols.getInstance(locale));
+                sFormattedValues = new String[FORMAT_CACHE_SIZE];
+            }
+            String formatted = cached ? sFormattedValues[index] : null;
+            if (formatted == null) {
+                formatted = sNoDigitsFormat.format(value);
+                if (formatted.equals(sNoDigitsFormat.format(-0.0f))) {
+                    formatted = sNoDigitsFormat.format(0);
+                }
+                if (cached) {
+                    sFormattedValues[index] = formatted;
+                }
+            }
+            return formatted;
+        }
+    }
+
+    static String getFormattedDirection(int direction) {
+        if (direction < 0 || direction >= sFormattedDirections.length) {
+            return String.valueOf(direction) + "\u00b0";
+        }
+        String formatted = sFormattedDirections[direction];
+        if (formatted == null) {
+            formatted = String.valueOf(direction) + "\u00b0";
+            sFormattedDirections[direction] = formatted;
         }
         return formatted;
     }
 
+    /**
+     * Reloads the cached weather if the service published something new
+     * since the last read. Blocks on a provider call in that case.
+     */
     public void queryWeather() {
-        if (!isOmniJawsEnabled()) {
-            Log.w(TAG, "queryWeather while disabled");
-            mCachedInfo = null;
+        if (mInstalled) {
+            loadIfStale(mContext);
+        }
+    }
+
+    /**
+     * Non blocking variant of {@link #queryWeather}. Requests made while
+     * another one is pending share its result.
+     *
+     * @param callback gets the weather on the main thread, may be null
+     * @return handle to wait for or cancel the request
+     */
+    public Future<WeatherInfo> queryWeatherAsync(Callback<WeatherInfo> callback) {
+        if (!mInstalled) {
+            return null;
+        }
+        return submitWeatherRequest(mContext.getApplicationContext(), callback);
+    }
+
+    private static Future<WeatherInfo> submitWeatherRequest(final Context context,
+            Callback<WeatherInfo> callback) {
+        return sExecutor.submit(REQUEST_WEATHER, new Callable<WeatherInfo>() {
+            @Override
+            public WeatherInfo call() {
+                loadIfStale(context);
+                final State state = sState;
+                return state != null && state.mEnabled ? state.mInfo : null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Reloads the cached weather in the background if needed and notifies
+     * the observers on the main thread afterwards.
+     */
+    public void refresh() {
+        if (mInstalled) {
+            refresh(mContext.getApplicationContext());
+        }
+    }
+
+    private static void refresh(Context context) {
+        submitWeatherRequest(context, new Callback<WeatherInfo>() {
+            @Override
+            public void onResult(WeatherInfo info) {
+                final OmniJawsObserver[] observers;
+                synchronized (sObservers) {
+                    observers = sObservers.toArray(new OmniJawsObserver[sObservers.size()]);
+                }
+                for (OmniJawsObserver observer : observers) {
+                    observer.weatherUpdated();
+                }
+            }
+        });
+    }
+
+    private static void loadIfStale(Context context) {
+        // a change noticed while loading leaves the cache stale
+        final long changes = sChanges.get();
+        final State state;
+        synchronized (sLock) {
+            state = sState;
+            // the condition names must be loaded again after a locale change
+            if (changes == sLoadedChanges && state != null
+                    && (state.mInfo == null || getLocale(context).equals(state.mLocale))) {
+                return;
+            }
+        }
+        // a slow service must only block this caller, not every client
+        State loaded = callWeather(context, state);
+        if (loaded == null) {
+            // service without call support
+            loaded = queryState(context);
+        }
+        if (loaded == null) {
             return;
         }
-        Cursor c = mContext.getContentResolver().query(WEATHER_URI, WEATHER_PROJECTION,
+        setState(loaded, changes);
+    }
+
+    /**
+     * Replaces the cached state unless a load that started later already did.
+     */
+    private static void setState(State state, long changes) {
+        synchronized (sLock) {
+            if (changes < sLoadedChanges) {
+                if (DEBUG) Log.d(TAG, "Dropping outdated state " + changes);
+                return;
+            }
+            sState = state;
+            sLoadedChanges = changes;
+        }
+        if (DEBUG) Log.d(TAG, "queryWeather " + state.mInfo);
+    }
+
+    private static State queryState(Context context) {
+        boolean enabled = true;
+        boolean metric = true;
+        final Cursor s = context.getContentResolver().query(SETTINGS_URI, SETTINGS_PROJECTION,
+                null, null, null);
+        if (s == null) {
+            return null;
+        }
+        try {
+            if (s.getCount() == 1) {
+                s.moveToPosition(0);
+                enabled = s.getInt(s.getColumnIndexOrThrow("enabled")) == 1;
+                metric = s.getInt(s.getColumnIndexOrThrow("units")) == 0;
+            }
+        } finally {
+            s.close();
+        }
+        if (!enabled) {
+            Log.w(TAG, "queryWeather while disabled");
+            return new State(null, false, metric, -1, null);
+        }
+
+        WeatherInfo info = null;
+        Cursor c = context.getContentResolver().query(WEATHER_URI, WEATHER_PROJECTION,
                 null, null, null);
-        mCachedInfo = null;
         if (c != null) {
             try {
-                int count = c.getCount();
-                if (count > 0) {
-                    mCachedInfo = new WeatherInfo();
-                    List<DayForecast> forecastList = new ArrayList<DayForecast>();
-                    int i = 0;
-                    for (i = 0; i < count; i++) {
-                        c.moveToPosition(i);
-                        if (i == 0) {
-                            mCachedInfo.city = c.getString(0);
-                            mCachedInfo.windSpeed = getFormattedValue(c.getFloat(1));
-                            mCachedInfo.windDirection = String.valueOf(c.getInt(2)) + "\u00b0";
-                            mCachedInfo.conditionCode = c.getInt(3);
-                            mCachedInfo.temp = getFormattedValue(c.getFloat(4));
-                            mCachedInfo.humidity = c.getString(5);
-                            mCachedInfo.condition = c.getString(6);
-                            mCachedInfo.timeStamp = Long.valueOf(c.getString(11));
-                        } else {
-                            DayForecast day = new DayForecast();
-                            day.low = getFormattedValue(c.getFloat(7));
-                            day.high = getFormattedValue(c.getFloat(8));
-                            day.condition = c.getString(9);
-                            day.conditionCode = c.getInt(10);
-                            day.date = c.getString(12);
-                            forecastList.add(day);
-                        }
-                    }
-                    mCachedInfo.forecasts = forecastList;
+                info = new WeatherInfo();
+                if (new WeatherCursorReader(c).read(c, info)) {
+                    setUnits(info, metric);
+                } else {
+                    info = null;
                 }
             } finally {
                 c.close();
             }
         }
-        updateUnits();
-        if (DEBUG) Log.d(TAG, "queryWeather " + mCachedInfo);
+        return new State(info, true, metric, -1, getLocale(context));
     }
 
-    private boolean isOmniJawsServiceInstalled() {
-        return isAvailableApp(SERVICE_PACKAGE);
+    /**
+     * Reads the weather from the shared memory snapshot of the service
+     * without a binder call once the region is mapped. Falls back to
+     * {@link #queryWeather} if shared memory is not available.
+     */
+    public void readSharedWeather() {
+        final ByteBuffer buffer = getSharedBuffer();
+        if (buffer != null) {
+            for (int i = 0; i < SHARED_READ_RETRIES; i++) {
+                if (readSharedRecord(buffer)) {
+                    if (DEBUG) Log.d(TAG, "readSharedWeather " + getWeatherInfo());
+                    return;
+                }
+            }
+            Log.w(TAG, "No consistent shared weather record");
+        }
+        queryWeather();
     }
 
-    public boolean isOmniJawsEnabled() {
-        if (!mEnabled) {
+    private ByteBuffer getSharedBuffer() {
+        if (sSharedBuffer != null || !mInstalled
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) {
+            return sSharedBuffer;
+        }
+        try {
+            Bundle result = mContext.getContentResolver().call(WEATHER_URI,
+                    METHOD_GET_SHARED_MEMORY, null, null);
+            if (result == null) {
+                return null;
+            }
+            SharedMemory memory = result.getParcelable(KEY_SHARED_MEMORY);
+            IBinder token = result.getBinder(KEY_TOKEN);
+            if (memory == null || token == null) {
+                return null;
+            }
+            ByteBuffer buffer = memory.mapReadOnly();
+            // the mapping stays valid without the descriptor
+            memory.close();
+            if (buffer.getInt(0) != WeatherSharedLayout.MAGIC
+                    || buffer.getInt(4) != WeatherSharedLayout.LAYOUT_VERSION) {
+                Log.w(TAG, "Unknown shared weather layout");
+                SharedMemory.unmap(buffer);
+                return null;
+            }
+            // a restarted service publishes a new region
+            token.linkToDeath(new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    sSharedBuffer = null;
+                }
+            }, 0);
+            sSharedBuffer = buffer;
+        } catch (IllegalArgumentException | ErrnoException | RemoteException e) {
+            Log.w(TAG, "Failed to map shared weather", e);
+        }
+        return sSharedBuffer;
+    }
+
+    /**
+     * @return false if the record changed while it was read
+     */
+    private boolean readSharedRecord(ByteBuffer buffer) {
+        final long sequence = buffer.getLong(WeatherSharedLayout.SEQUENCE_OFFSET);
+        if ((sequence & 1) != 0) {
             return false;
         }
-        final Cursor c = mContext.getContentResolver().query(SETTINGS_URI, SETTINGS_PROJECTION,
-                null, null, null);
-        if (c != null) {
-            int count = c.getCount();
-            if (count == 1) {
-                c.moveToPosition(0);
-                return c.getInt(0) == 1;
+        final int length = buffer.getInt(WeatherSharedLayout.LENGTH_OFFSET);
+        final int checksum = buffer.getInt(WeatherSharedLayout.CHECKSUM_OFFSET);
+        if (length <= 0
+                || length > WeatherSharedLayout.REGION_SIZE - WeatherSharedLayout.RECORD_OFFSET) {
+            return false;
+        }
+        // the sequence alone does not order the reads, only the copy the
+        // checksum was verified on is used
+        final byte[] record = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(WeatherSharedLayout.RECORD_OFFSET);
+        source.get(record);
+        if (buffer.getLong(WeatherSharedLayout.SEQUENCE_OFFSET) != sequence) {
+            return false;
+        }
+        final ByteBuffer in = ByteBuffer.wrap(record);
+        if (WeatherSharedLayout.checksum(in) != checksum) {
+            if (DEBUG) Log.d(TAG, "Shared weather checksum mismatch");
+            return false;
+        }
+
+        final long changes = sChanges.get();
+        final State state = sState;
+        final Locale locale = getLocale(mContext);
+        final long version = in.getLong();
+        final int flags = in.getInt();
+        final boolean enabled = (flags & WeatherSharedLayout.FLAG_ENABLED) != 0;
+        final boolean metric = (flags & WeatherSharedLayout.FLAG_METRIC) != 0;
+        final boolean unchanged = state != null && state.mInfo != null
+                && version == state.mVersion && locale.equals(state.mLocale);
+
+        WeatherInfo info = null;
+        if (enabled && !unchanged && (flags & WeatherSharedLayout.FLAG_HAS_DATA) != 0) {
+            info = new WeatherInfo();
+            info.timeStamp = in.getLong();
+            info.temp = getFormattedValue(in.getFloat());
+            info.windSpeed = getFormattedValue(in.getFloat());
+            info.windDirection = getFormattedDirection(in.getInt());
+            info.conditionCode = in.getInt();
+            info.city = readSharedString(in);
+            info.condition = readSharedString(in);
+            info.humidity = readSharedString(in);
+            info.pinWheel = readSharedString(in);
+            int count = in.getInt();
+            if (count < 0 || count > WeatherSharedLayout.MAX_FORECASTS) {
+                return false;
+            }
+            info.forecasts = new ArrayList<DayForecast>(count);
+            for (int i = 0; i < count; i++) {
+                DayForecast day = new DayForecast();
+                day.low = getFormattedValue(in.getFloat());
+                day.high = getFormattedValue(in.getFloat());
+                day.conditionCode = in.getInt();
+                day.condition = readSharedString(in);
+                day.date = readSharedString(in);
+                info.forecasts.add(day);
             }
         }
+
+        if (!enabled) {
+            setState(new State(null, false, metric, version, null), changes);
+        } else if (unchanged) {
+            setState(new State(withUnits(state.mInfo, metric), true, metric, version, locale),
+                    changes);
+        } else {
+            if (info != null) {
+                setUnits(info, metric);
+            }
+            setState(new State(info, true, metric, version, locale), changes);
+        }
         return true;
     }
 
-    private void updateUnits() {
-        if (!mEnabled) {
-            return;
+    private static String readSharedString(ByteBuffer in) {
+        final int start = in.position();
+        int length = in.getShort();
+        if (length < 0 || length > WeatherSharedLayout.STRING_SIZE - 2) {
+            // not written by a known layout
+            length = 0;
         }
-        final Cursor c = mContext.getContentResolver().query(SETTINGS_URI, SETTINGS_PROJECTION,
-                null, null, null);
-        if (c != null) {
-            int count = c.getCount();
-            if (count == 1) {
-                c.moveToPosition(0);
-                mMetric = c.getInt(1) == 0;
-                if (mCachedInfo != null) {
-                    mCachedInfo.tempUnits = getTemperatureUnit();
-                    mCachedInfo.windUnits = getWindUnit();
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        in.position(start + WeatherSharedLayout.STRING_SIZE);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the new state or null if the service does not support the call
+     */
+    private static State callWeather(Context context, State state) {
+        final Locale locale = getLocale(context);
+        final Bundle data;
+        try {
+            // the condition names must be loaded again after a locale change
+            String knownVersion = state != null && state.mInfo != null
+                    && locale.equals(state.mLocale) ? String.valueOf(state.mVersion) : null;
+            data = context.getContentResolver().call(WEATHER_URI, METHOD_GET_WEATHER,
+                    knownVersion, null);
+        } catch (IllegalArgumentException e) {
+            // service not installed
+            return null;
+        }
+        if (data == null) {
+            return null;
+        }
+
+        final boolean metric = data.getInt(KEY_UNITS) == 0;
+        final long version = data.getLong(KEY_VERSION);
+        if (!data.getBoolean(KEY_ENABLED)) {
+            Log.w(TAG, "queryWeather while disabled");
+            return new State(null, false, metric, -1, null);
+        }
+        if (state != null && state.mInfo != null && !data.getBoolean(KEY_CHANGED, true)) {
+            if (DEBUG) Log.d(TAG, "queryWeather unchanged " + version);
+            return new State(withUnits(state.mInfo, metric), true, metric, version, locale);
+        }
+
+        WeatherInfo info = null;
+        Parcelable[] rows = data.getParcelableArray(KEY_ROWS);
+        if (rows != null && rows.length > 0) {
+            info = new WeatherInfo();
+            List<DayForecast> forecastList = new ArrayList<DayForecast>();
+            for (int i = 0; i < rows.length; i++) {
+                Bundle row = (Bundle) rows[i];
+                if (i == 0) {
+                    info.city = row.getString("city");
+                    info.windSpeed = getFormattedValue(row.getFloat("wind_speed"));
+                    info.windDirection = getFormattedDirection(row.getInt("wind_direction"));
+                    info.conditionCode = row.getInt("condition_code");
+                    info.temp = getFormattedValue(row.getFloat("temperature"));
+                    info.humidity = row.getString("humidity");
+                    info.condition = row.getString("condition");
+                    info.timeStamp = Long.valueOf(row.getString("time_stamp"));
+                    info.pinWheel = row.getString("pin_wheel");
+                } else {
+                    DayForecast day = new DayForecast();
+                    day.low = getFormattedValue(row.getFloat("forecast_low"));
+                    day.high = getFormattedValue(row.getFloat("forecast_high"));
+                    day.condition = row.getString("forecast_condition");
+                    day.conditionCode = row.getInt("forecast_condition_code");
+                    day.date = row.getString("forecast_date");
+                    forecastList.add(day);
                 }
             }
+            info.forecasts = forecastList;
+            setUnits(info, metric);
+        }
+        return new State(info, true, metric, version, locale);
+    }
+
+    private void loadDefaultIconsPackage() {
+        mPackageName = ICON_PACKAGE_DEFAULT;
+        mIconPrefix = ICON_PREFIX_DEFAULT;
+        mSettingIconPackage = mPackageName + "." + mIconPrefix;
+        if (DEBUG) Log.d(TAG, "Load default icon pack " + mSettingIconPackage + " " + mPackageName + " " + mIconPrefix);
+        try {
+            PackageManager packageManager = mContext.getPackageManager();
+            mRes = packageManager.getResourcesForApplication(mPackageName);
+        } catch (Exception e) {
+            mRes = null;
         }
+        if (mRes == null) {
+            Log.w(TAG, "No default package found");
+        }
+    }
+
+    /**
+     * @param iconPack package and prefix of the icons or empty for the default ones
+     */
+    public synchronized void loadIconPackage(String iconPack) {
+        if (TextUtils.isEmpty(iconPack)) {
+            iconPack = ICON_PACKAGE_DEFAULT + "." + ICON_PREFIX_DEFAULT;
+        }
+        if (iconPack.equals(mSettingIconPackage) && mRes != null) {
+            return;
+        }
+        mSettingIconPackage = iconPack;
+        int idx = mSettingIconPackage.lastIndexOf(".");
+        mPackageName = mSettingIconPackage.substring(0, idx);
+        mIconPrefix = mSettingIconPackage.substring(idx + 1);
+        if (DEBUG) Log.d(TAG, "Load custom icon pack " + mSettingIconPackage + " " + mPackageName + " " + mIconPrefix);
+        try {
+            PackageManager packageManager = mContext.getPackageManager();
+            mRes = packageManager.getResourcesForApplication(mPackageName);
+        } catch (Exception e) {
+            mRes = null;
+        }
+        if (mRes == null) {
+            Log.w(TAG, "Icon pack loading failed - loading default");
+            loadDefaultIconsPackage();
+        }
+    }
+
+    /**
+     * Non blocking variant of {@link #getWeatherConditionImage}. Requests for
+     * the same icon that are pending at the same time share one drawable,
+     * call mutate() on it before changing its state.
+     *
+     * @param callback gets the image on the main thread, may be null
+     * @return handle to wait for or cancel the request
+     */
+    public Future<Drawable> getWeatherConditionImageAsync(final int conditionCode,
+            Callback<Drawable> callback) {
+        if (!mInstalled) {
+            return null;
+        }
+        final String iconPack;
+        synchronized (this) {
+            iconPack = mSettingIconPackage;
+        }
+        return sExecutor.submit(iconPack + "_" + conditionCode, new Callable<Drawable>() {
+            @Override
+            public Drawable call() {
+                return getWeatherConditionImage(conditionCode);
+            }
+        }, callback);
+    }
+
+    public Drawable getWeatherConditionImage(int conditionCode) {
+        // may call the service, so not while holding the icon pack lock
+        if (!isOmniJawsEnabled()) {
+            Log.w(TAG, "Requesting condition image while disabled");
+            return null;
+        }
+        synchronized (this) {
+            return getConditionImage(conditionCode);
+        }
+    }
+
+    // called with the instance lock held
+    private Drawable getConditionImage(int conditionCode) {
+        if (!isAvailableApp(mPackageName)) {
+            Log.w(TAG, "Icon pack no longer available - loading default " + mPackageName);
+            loadDefaultIconsPackage();
+        }
+        if (mRes == null) {
+            Log.w(TAG, "Requesting condition image while disabled");
+            return null;
+        }
+        try {
+            int resId = mRes.getIdentifier(mIconPrefix + "_" + conditionCode, "drawable", mPackageName);
+            return mRes.getDrawable(resId);
+        } catch(Exception e) {
+            Log.w(TAG, "Failed to get condition image for " + conditionCode);
+            return null;
+        }
+    }
+
+    public boolean isOmniJawsServiceInstalled() {
+        return mInstalled;
+    }
+
+    /**
+     * Answered from the cache unless the settings changed since the last read.
+     */
+    public boolean isOmniJawsEnabled() {
+        if (!mInstalled) {
+            return false;
+        }
+        loadIfStale(mContext);
+        final State state = sState;
+        return state == null || state.mEnabled;
+    }
+
+    public void setOmniJawsEnabled(boolean value) {
+        if (mInstalled) {
+            Intent updateIntent = new Intent(Intent.ACTION_MAIN)
+                    .setClassName(SERVICE_PACKAGE, SERVICE_PACKAGE + ".WeatherService");
+            updateIntent.setAction(SERVICE_PACKAGE + ".ACTION_ENABLE");
+            updateIntent.putExtra("enable", value);
+            mContext.startService(updateIntent);
+        }
+    }
+
+    private static WeatherInfo withUnits(WeatherInfo info, boolean metric) {
+        if (getTemperatureUnit(metric).equals(info.tempUnits)) {
+            return info;
+        }
+        // cached instances are shared and never modified
+        WeatherInfo copy = new WeatherInfo();
+        copy.city = info.city;
+        copy.windSpeed = info.windSpeed;
+        copy.windDirection = info.windDirection;
+        copy.conditionCode = info.conditionCode;
+        copy.temp = info.temp;
+        copy.humidity = info.humidity;
+        copy.condition = info.condition;
+        copy.timeStamp = info.timeStamp;
+        copy.forecasts = info.forecasts;
+        copy.pinWheel = info.pinWheel;
+        setUnits(copy, metric);
+        return copy;
+    }
+
+    private static void setUnits(WeatherInfo info, boolean metric) {
+        info.tempUnits = getTemperatureUnit(metric);
+        info.windUnits = getWindUnit(metric);
+    }
+
+    private static Locale getLocale(Context context) {
+        return context.getResources().getConfiguration().getLocales().get(0);
     }
 
-    private String getTemperatureUnit() {
-        return "\u00b0" + (mMetric ? "C" : "F");
+    private static String getTemperatureUnit(boolean metric) {
+        return "\u00b0" + (metric ? "C" : "F");
     }
 
-    private String getWindUnit() {
-        return mMetric ? "km/h":"mph";
+    private static String getWindUnit(boolean metric) {
+        return metric ? "km/h":"mph";
     }
 
     private boolean isAvailableApp(String packageName) {
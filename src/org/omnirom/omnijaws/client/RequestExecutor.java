@@ -0,0 +1,215 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Runs client requests on a small bounded pool. Requests with the same key
+ * share one task as long as it has not started, a request made while the
+ * task runs could miss what changed since and gets a new one. Every caller
+ * gets its own handle, cancelling it only cancels the task once no caller
+ * is left.
+ */
+class RequestExecutor {
+    private static final String TAG = "WeatherService:RequestExecutor";
+    private static final boolean DEBUG = false;
+
+    private static final int THREADS = 2;
+    private static final int QUEUE_SIZE = 32;
+    private static final long KEEP_ALIVE = 30 * 1000;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler;
+    // tasks that have not started yet by key
+    private final HashMap<Object, SharedTask<?>> mTasks = new HashMap<Object, SharedTask<?>>();
+
+    RequestExecutor() {
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_SIZE));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * @param callback called on the main thread with the result, or with
+     * null if the request failed. Not called once the handle is cancelled.
+     */
+    <T> Future<T> submit(Object key, Callable<T> callable, OmniJawsClient.Callback<T> callback) {
+        final Request<T> request = new Request<T>(callback);
+        SharedTask<T> task;
+        boolean created = false;
+        synchronized (mTasks) {
+            @SuppressWarnings("unchecked")
+            SharedTask<T> pending = (SharedTask<T>) mTasks.get(key);
+            task = pending;
+            if (task == null) {
+                task = new SharedTask<T>(key, callable);
+                mTasks.put(key, task);
+                created = true;
+            } else if (DEBUG) {
+                Log.d(TAG, "Joining pending request " + key);
+            }
+            request.mTask = task;
+            task.mRequests.add(request);
+        }
+        if (created) {
+            try {
+                mExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Too many pending requests, dropping " + key);
+                task.cancel(false);
+            }
+        }
+        return request;
+    }
+
+    private void cancel(Request<?> request) {
+        final SharedTask<?> task = request.mTask;
+        synchronized (mTasks) {
+            task.mRequests.remove(request);
+            if (!task.mRequests.isEmpty()) {
+                return;
+            }
+            if (mTasks.get(task.mKey) == task) {
+                mTasks.remove(task.mKey);
+            }
+        }
+        if (DEBUG) Log.d(TAG, "Cancelled request " + task.mKey);
+        task.cancel(true);
+    }
+
+    private class SharedTask<T> extends FutureTask<T> {
+        final Object mKey;
+        // guarded by mTasks
+        final ArrayList<Request<T>> mRequests = new ArrayList<Request<T>>();
+
+        SharedTask(Object key, Callable<T> callable) {
+            super(callable);
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mTasks) {
+                // from now on requests for the key start a new task
+                if (mTasks.get(mKey) == this) {
+                    mTasks.remove(mKey);
+                }
+            }
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            final ArrayList<Request<T>> requests;
+            synchronized (mTasks) {
+                // cancelled or rejected before it started
+                if (mTasks.get(mKey) == this) {
+                    mTasks.remove(mKey);
+                }
+                requests = new ArrayList<Request<T>>(mRequests);
+            }
+            T result = null;
+            if (!isCancelled()) {
+                try {
+                    result = get();
+                } catch (ExecutionException | InterruptedException e) {
+                    Log.w(TAG, "Request " + mKey + " failed", e.getCause());
+                }
+            }
+            final T value = result;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Request<T> request : requests) {
+                        request.deliver(value);
+                    }
+                }
+            });
+        }
+    }
+
+    private class Request<T> implements Future<T> {
+        final OmniJawsClient.Callback<T> mCallback;
+        SharedTask<T> mTask;
+        private volatile boolean mCancelled;
+
+        Request(OmniJawsClient.Callback<T> callback) {
+            mCallback = callback;
+        }
+
+        void deliver(T result) {
+            if (!mCancelled && mCallback != null) {
+                mCallback.onResult(result);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (mCancelled || mTask.isDone()) {
+                return false;
+            }
+            mCancelled = true;
+            RequestExecutor.this.cancel(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mCancelled || mTask.isDone();
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            return mTask.get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            return mTask.get(timeout, unit);
+        }
+    }
+}
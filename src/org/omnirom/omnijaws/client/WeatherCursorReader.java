@@ -0,0 +1,150 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+
+import org.omnirom.omnijaws.client.OmniJawsClient.DayForecast;
+import org.omnirom.omnijaws.client.OmniJawsClient.WeatherInfo;
+
+/**
+ * Decodes the rows of a weather query into the client model. The column
+ * indexes are looked up once by name, so any subset of
+ * {@link OmniJawsClient#WEATHER_PROJECTION} can be queried. Values of
+ * columns that are not part of the cursor are left untouched.
+ */
+public class WeatherCursorReader {
+    private final int mCity;
+    private final int mWindSpeed;
+    private final int mWindDirection;
+    private final int mConditionCode;
+    private final int mTemperature;
+    private final int mHumidity;
+    private final int mCondition;
+    private final int mTimeStamp;
+    private final int mPinWheel;
+    private final int mForecastLow;
+    private final int mForecastHigh;
+    private final int mForecastCondition;
+    private final int mForecastConditionCode;
+    private final int mForecastDate;
+
+    public WeatherCursorReader(Cursor c) {
+        mCity = c.getColumnIndex("city");
+        mWindSpeed = c.getColumnIndex("wind_speed");
+        mWindDirection = c.getColumnIndex("wind_direction");
+        mConditionCode = c.getColumnIndex("condition_code");
+        mTemperature = c.getColumnIndex("temperature");
+        mHumidity = c.getColumnIndex("humidity");
+        mCondition = c.getColumnIndex("condition");
+        mTimeStamp = c.getColumnIndex("time_stamp");
+        mPinWheel = c.getColumnIndex("pin_wheel");
+        mForecastLow = c.getColumnIndex("forecast_low");
+        mForecastHigh = c.getColumnIndex("forecast_high");
+        mForecastCondition = c.getColumnIndex("forecast_condition");
+        mForecastConditionCode = c.getColumnIndex("forecast_condition_code");
+        mForecastDate = c.getColumnIndex("forecast_date");
+    }
+
+    /**
+     * Reads all rows of the cursor. The first row is the current condition,
+     * the others are the forecast days. The forecast list and its entries
+     * are reused if info already has them.
+     *
+     * @return false if the cursor has no rows
+     */
+    public boolean read(Cursor c, WeatherInfo info) {
+        if (!c.moveToFirst()) {
+            return false;
+        }
+        readCurrent(c, info);
+
+        List<DayForecast> forecasts = info.forecasts;
+        if (forecasts == null) {
+            forecasts = new ArrayList<DayForecast>(c.getCount() - 1);
+            info.forecasts = forecasts;
+        }
+        int days = 0;
+        while (c.moveToNext()) {
+            DayForecast day;
+            if (days < forecasts.size()) {
+                day = forecasts.get(days);
+            } else {
+                day = new DayForecast();
+                forecasts.add(day);
+            }
+            readForecast(c, day);
+            days++;
+        }
+        while (forecasts.size() > days) {
+            forecasts.remove(forecasts.size() - 1);
+        }
+        return true;
+    }
+
+    public void readCurrent(Cursor c, WeatherInfo info) {
+        if (mCity != -1) {
+            info.city = c.getString(mCity);
+        }
+        if (mWindSpeed != -1) {
+            info.windSpeed = OmniJawsClient.getFormattedValue(c.getFloat(mWindSpeed));
+        }
+        if (mWindDirection != -1) {
+            info.windDirection = OmniJawsClient.getFormattedDirection(c.getInt(mWindDirection));
+        }
+        if (mConditionCode != -1) {
+            info.conditionCode = c.getInt(mConditionCode);
+        }
+        if (mTemperature != -1) {
+            info.temp = OmniJawsClient.getFormattedValue(c.getFloat(mTemperature));
+        }
+        if (mHumidity != -1) {
+            info.humidity = c.getString(mHumidity);
+        }
+        if (mCondition != -1) {
+            info.condition = c.getString(mCondition);
+        }
+        if (mTimeStamp != -1) {
+            info.timeStamp = c.getLong(mTimeStamp);
+        }
+        if (mPinWheel != -1) {
+            info.pinWheel = c.getString(mPinWheel);
+        }
+    }
+
+    public void readForecast(Cursor c, DayForecast day) {
+        if (mForecastLow != -1) {
+            day.low = OmniJawsClient.getFormattedValue(c.getFloat(mForecastLow));
+        }
+        if (mForecastHigh != -1) {
+            day.high = OmniJawsClient.getFormattedValue(c.getFloat(mForecastHigh));
+        }
+        if (mForecastCondition != -1) {
+            day.condition = c.getString(mForecastCondition);
+        }
+        if (mForecastConditionCode != -1) {
+            day.conditionCode = c.getInt(mForecastConditionCode);
+        }
+        if (mForecastDate != -1) {
+            day.date = c.getString(mForecastDate);
+        }
+    }
+}
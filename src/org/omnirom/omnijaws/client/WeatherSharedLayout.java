@@ -0,0 +1,69 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.client;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of the weather record the service publishes in shared memory,
+ * shared by the writer in the service and the reader in the client.
+ *
+ * Header, all values big endian:
+ * <pre>
+ * int magic, int layout version, long sequence
+ * int record length, int record checksum
+ * </pre>
+ * Record:
+ * <pre>
+ * long weather version, int flags, long timestamp
+ * float temperature, float wind speed, int wind direction, int condition code
+ * string city, string condition, string humidity, string pin wheel
+ * int forecast count, then for each day:
+ *     float low, float high, int condition code, string condition, string date
+ * </pre>
+ * A string is a short byte count followed by STRING_SIZE - 2 bytes of UTF-8.
+ * The sequence is odd while a record is written. The plain buffer accesses
+ * give no ordering guarantee between processes, so readers copy the record
+ * and only use the copy if its checksum matches.
+ */
+public class WeatherSharedLayout {
+    public static final int MAGIC = 0x4f4a534d; // OJSM
+    public static final int LAYOUT_VERSION = 2;
+    public static final int REGION_SIZE = 4096;
+    public static final int SEQUENCE_OFFSET = 8;
+    public static final int LENGTH_OFFSET = 16;
+    public static final int CHECKSUM_OFFSET = 20;
+    public static final int RECORD_OFFSET = 24;
+    public static final int STRING_SIZE = 64;
+    public static final int MAX_FORECASTS = 5;
+
+    public static final int FLAG_HAS_DATA = 1 << 0;
+    public static final int FLAG_ENABLED = 1 << 1;
+    public static final int FLAG_METRIC = 1 << 2;
+
+    /**
+     * @return the checksum of the remaining bytes of record, its position
+     * is left unchanged
+     */
+    public static int checksum(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+        return (int) crc.getValue();
+    }
+}
@@ -123,25 +123,31 @@ public class WeatherAppWidgetConfigure extends PreferenceActivity {
 
     public static void clearPrefs(Context context, int id) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        prefs.edit().remove(KEY_ICON_PACK + "_" + id).commit();
-        prefs.edit().remove(KEY_BACKGROUND_SHADOW + "_" + id).commit();
-        prefs.edit().remove(KEY_WITH_FORECAST + "_" + id).commit();
+        prefs.edit()
+                .remove(KEY_ICON_PACK + "_" + id)
+                .remove(KEY_BACKGROUND_SHADOW + "_" + id)
+                .remove(KEY_WITH_FORECAST + "_" + id)
+                .commit();
     }
 
     public static void remapPrefs(Context context, int oldId, int newId) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
+        SharedPreferences.Editor editor = prefs.edit();
+
         String oldValue = prefs.getString(KEY_ICON_PACK + "_" + oldId, "");
-        prefs.edit().putString(KEY_ICON_PACK + "_" + newId, oldValue).commit();
-        prefs.edit().remove(KEY_ICON_PACK + "_" + oldId).commit();
+        editor.putString(KEY_ICON_PACK + "_" + newId, oldValue);
+        editor.remove(KEY_ICON_PACK + "_" + oldId);
 
         boolean oldBoolean = prefs.getBoolean(KEY_BACKGROUND_SHADOW + "_" + oldId, false);
-        prefs.edit().putBoolean(KEY_BACKGROUND_SHADOW + "_" + newId, oldBoolean).commit();
-        prefs.edit().remove(KEY_BACKGROUND_SHADOW + "_" + oldId).commit();
+        editor.putBoolean(KEY_BACKGROUND_SHADOW + "_" + newId, oldBoolean);
+        editor.remove(KEY_BACKGROUND_SHADOW + "_" + oldId);
 
         oldBoolean = prefs.getBoolean(KEY_WITH_FORECAST + "_" + oldId, true);
-        prefs.edit().putBoolean(KEY_WITH_FORECAST + "_" + newId, oldBoolean).commit();
-        prefs.edit().remove(KEY_WITH_FORECAST + "_" + oldId).commit();
+        editor.putBoolean(KEY_WITH_FORECAST + "_" + newId, oldBoolean);
+        editor.remove(KEY_WITH_FORECAST + "_" + oldId);
+
+        editor.commit();
     }
 
     @Override
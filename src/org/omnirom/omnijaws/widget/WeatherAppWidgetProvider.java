@@ -35,22 +35,28 @@ import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.VectorDrawable;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.text.TextPaint;
-import android.text.TextUtils;
 import android.text.format.DateFormat;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.View;
-import android.widget.RemoteViews;
 
 import org.omnirom.omnijaws.R;
+import org.omnirom.omnijaws.client.OmniJawsClient;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 public class WeatherAppWidgetProvider extends AppWidgetProvider {
     private static final String TAG = "WeatherAppWidgetProvider";
@@ -59,8 +65,63 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
     private static final String WEATHER_UPDATE = "org.omnirom.omnijaws.WEATHER_UPDATE";
     private static final String WEATHER_ERROR = "org.omnirom.omnijaws.WEATHER_ERROR";
     private static final String EXTRA_ERROR = "error";
+    private static final String EXTRA_VERSION = "version";
     private static final int EXTRA_ERROR_DISABLED = 2;
 
+    // settings that change what a widget shows, widgets with equal ones share their views
+    private static class WidgetConfig {
+        final String mIconPack;
+        final boolean mWithForecast;
+        final boolean mBackgroundShadow;
+        // tall enough for the day names and the details line
+        final boolean mShowDetails;
+
+        WidgetConfig(String iconPack, boolean withForecast, boolean backgroundShadow,
+                boolean showDetails) {
+            mIconPack = iconPack;
+            mWithForecast = withForecast;
+            mBackgroundShadow = backgroundShadow;
+            mShowDetails = showDetails;
+        }
+
+        static WidgetConfig load(Context context, SharedPreferences prefs,
+                AppWidgetManager appWidgetManager, int appWidgetId) {
+            String iconPack = prefs.getString(WeatherAppWidgetConfigure.KEY_ICON_PACK + "_" + appWidgetId, "");
+            boolean withForcast = prefs.getBoolean(WeatherAppWidgetConfigure.KEY_WITH_FORECAST + "_" + appWidgetId, true);
+            boolean backgroundShadow = prefs.getBoolean(WeatherAppWidgetConfigure.KEY_BACKGROUND_SHADOW + "_" + appWidgetId, false);
+
+            Bundle newOptions = appWidgetManager.getAppWidgetOptions(appWidgetId);
+            int minHeight = context.getResources().getDimensionPixelSize(R.dimen.weather_widget_height);
+            int currentHeight = minHeight;
+            if (newOptions != null) {
+                currentHeight = newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT, minHeight);
+            }
+            return new WidgetConfig(iconPack, withForcast, backgroundShadow,
+                    currentHeight > minHeight && withForcast);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WidgetConfig)) {
+                return false;
+            }
+            WidgetConfig other = (WidgetConfig) o;
+            return mIconPack.equals(other.mIconPack) && mWithForecast == other.mWithForecast
+                    && mBackgroundShadow == other.mBackgroundShadow
+                    && mShowDetails == other.mShowDetails;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mIconPack, mWithForecast, mBackgroundShadow, mShowDetails);
+        }
+
+        @Override
+        public String toString() {
+            return mIconPack + ":" + mWithForecast + ":" + mBackgroundShadow + ":" + mShowDetails;
+        }
+    }
+
     @Override
     public void onEnabled(Context context) {
         super.onEnabled(context);
@@ -75,6 +136,8 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         if (LOGGING) {
             Log.i(TAG, "onDisabled");
         }
+        WidgetBitmapCache.clear();
+        WidgetIconCache.clear(context);
     }
 
     @Override
@@ -86,6 +149,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             }
             WeatherAppWidgetConfigure.clearPrefs(context, id);
         }
+        WidgetState.forget(appWidgetIds);
     }
 
     @Override
@@ -98,6 +162,8 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             WeatherAppWidgetConfigure.remapPrefs(context, oldWidgetId, newWidgetIds[i]);
             i++;
         }
+        WidgetState.forget(oldWidgetIds);
+        WidgetState.forget(newWidgetIds);
     }
 
     @Override
@@ -106,18 +172,22 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         if (LOGGING) {
             Log.i(TAG, "onReceive: " + action);
         }
-        if (action.equals(WEATHER_UPDATE)
-                || Intent.ACTION_LOCALE_CHANGED.equals(action)) {
-            updateAllWeather(context);
+        // rendering happens on the updater thread
+        if (action.equals(WEATHER_UPDATE)) {
+            long version = intent.getLongExtra(EXTRA_VERSION, -1);
+            WidgetUpdater.requestWeather(context, version, goAsync());
+        }
+        if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+            WidgetUpdater.requestWeather(context, -1, goAsync());
         }
         if (action.equals(REFRESH_BROADCAST)) {
-            showUpdateProgress(context);
+            WidgetUpdater.requestProgress(context, goAsync());
             OmniJawsClient weatherClient = new OmniJawsClient(context);
             weatherClient.updateWeather();
         }
         if (action.equals(WEATHER_ERROR)) {
             int errorReason = intent.getIntExtra(EXTRA_ERROR, 0);
-            showErrorState(context, errorReason);
+            WidgetUpdater.requestError(context, errorReason, goAsync());
         }
         super.onReceive(context, intent);
     }
@@ -125,6 +195,12 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         super.onUpdate(context, appWidgetManager, appWidgetIds);
+        if (LOGGING) {
+            Log.i(TAG, "onUpdate " + Arrays.toString(appWidgetIds));
+        }
+        // the host may have lost what it showed, send everything again
+        WidgetState.forget(appWidgetIds);
+        WidgetUpdater.requestWidgets(context, appWidgetIds, goAsync());
     }
 
     @Override
@@ -133,15 +209,14 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         if (LOGGING) {
             Log.i(TAG, "onAppWidgetOptionsChanged");
         }
-        updateWeather(context, appWidgetManager, appWidgetId);
+        WidgetUpdater.requestWidgets(context, new int[] { appWidgetId }, goAsync());
     }
 
     public static void updateAfterConfigure(Context context, int appWidgetId) {
         if (LOGGING) {
             Log.i(TAG, "updateAfterConfigure");
         }
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        updateWeather(context, appWidgetManager, appWidgetId);
+        WidgetUpdater.requestWidgets(context, new int[] { appWidgetId }, null);
     }
 
     public static void updateAllWeather(Context context) {
@@ -152,9 +227,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         if (appWidgetManager != null) {
             ComponentName componentName = new ComponentName(context, WeatherAppWidgetProvider.class);
             int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
-            for (int appWidgetId : appWidgetIds) {
-                updateWeather(context, appWidgetManager, appWidgetId);
-            }
+            updateWeather(context, appWidgetManager, appWidgetIds);
         }
     }
 
@@ -166,9 +239,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         if (appWidgetManager != null) {
             ComponentName componentName = new ComponentName(context, WeatherAppWidgetProvider.class);
             int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
-            for (int appWidgetId : appWidgetIds) {
-                showProgress(context, appWidgetManager, appWidgetId);
-            }
+            showProgress(context, appWidgetManager, appWidgetIds);
         }
     }
 
@@ -180,47 +251,99 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         if (appWidgetManager != null) {
             ComponentName componentName = new ComponentName(context, WeatherAppWidgetProvider.class);
             int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
-            for (int appWidgetId : appWidgetIds) {
-                showError(context, appWidgetManager, appWidgetId, errorReason);
-            }
+            showError(context, appWidgetManager, appWidgetIds, errorReason);
         }
     }
 
-    private static void updateWeather(
-            Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+    /**
+     * Renders the views once for all widgets that share a configuration.
+     * Must not be called on the main thread.
+     */
+    static void updateWeather(
+            Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
 
         if (LOGGING) {
-            Log.i(TAG, "updateWeather " + appWidgetId);
+            Log.i(TAG, "updateWeather " + Arrays.toString(appWidgetIds));
+        }
+        if (appWidgetIds.length == 0) {
+            return;
         }
+        // notice icon packs that were updated since the last pass
+        WidgetIconCache.clearPackageTimes();
         OmniJawsClient weatherClient = new OmniJawsClient(context);
         weatherClient.queryWeather();
+        OmniJawsClient.WeatherInfo weatherData = weatherClient.getWeatherInfo();
+        if (LOGGING) {
+            Log.i(TAG, "updateWeather " + weatherData);
+        }
+
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String iconPack = prefs.getString(WeatherAppWidgetConfigure.KEY_ICON_PACK + "_" + appWidgetId, "");
-        if (!TextUtils.isEmpty(iconPack)) {
-            weatherClient.loadIconPackage(iconPack);
+        Map<WidgetConfig, List<Integer>> groups = new LinkedHashMap<WidgetConfig, List<Integer>>();
+        for (int appWidgetId : appWidgetIds) {
+            WidgetConfig config = WidgetConfig.load(context, prefs, appWidgetManager, appWidgetId);
+            List<Integer> ids = groups.get(config);
+            if (ids == null) {
+                ids = new ArrayList<Integer>();
+                groups.put(config, ids);
+            }
+            ids.add(appWidgetId);
+        }
+
+        for (Map.Entry<WidgetConfig, List<Integer>> group : groups.entrySet()) {
+            if (LOGGING) {
+                Log.i(TAG, "updateWeather render " + group.getKey() + " for " + group.getValue());
+            }
+            WidgetState widget = buildWeatherViews(context, weatherClient, group.getKey(), weatherData);
+            List<Integer> ids = group.getValue();
+            for (int i = 0; i < ids.size(); i++) {
+                final int appWidgetId = ids.get(i);
+                // the click target is the only difference between the widgets of a group
+                WidgetState views = i == ids.size() - 1 ? widget : widget.copy();
+                Intent configureIntent = new Intent(context, WeatherAppWidgetConfigure.class);
+                configureIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+                views.setOnClickPendingIntent(R.id.weather_data, PendingIntent.getActivity(context,
+                        appWidgetId, configureIntent, PendingIntent.FLAG_UPDATE_CURRENT));
+                // without weather only the notice is changed
+                views.push(appWidgetManager, appWidgetId, weatherData == null);
+            }
+            // the remaining icons of the pack, after the widgets got their update
+            WidgetUpdater.requestPrepare(context, group.getKey().mIconPack);
+        }
+    }
+
+    /**
+     * @return the icon packs used by any of the widgets
+     */
+    static Set<String> getIconPacks(Context context) {
+        Set<String> iconPacks = new ArraySet<String>();
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        if (appWidgetManager != null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            ComponentName componentName = new ComponentName(context, WeatherAppWidgetProvider.class);
+            for (int appWidgetId : appWidgetManager.getAppWidgetIds(componentName)) {
+                iconPacks.add(WidgetConfig.load(context, prefs, appWidgetManager, appWidgetId).mIconPack);
+            }
         }
+        return iconPacks;
+    }
+
+    private static WidgetState buildWeatherViews(Context context, OmniJawsClient weatherClient,
+            WidgetConfig config, OmniJawsClient.WeatherInfo weatherData) {
+        final String iconPack = config.mIconPack;
+        final boolean withForcast = config.mWithForecast;
+        weatherClient.loadIconPackage(iconPack);
 
-        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
-        widget.setImageViewBitmap(R.id.refresh, shadow(context.getResources(),
-                context.getResources().getDrawable(R.drawable.ic_menu_refresh)).getBitmap());
+        WidgetState widget = new WidgetState(context, R.layout.weather_appwidget);
+        setRefreshImage(context, widget);
         Intent refreshIntent = new Intent();
         refreshIntent.setAction(REFRESH_BROADCAST);
         widget.setOnClickPendingIntent(R.id.refresh,
                 PendingIntent.getBroadcast(context, 0, refreshIntent, PendingIntent.FLAG_UPDATE_CURRENT));
         widget.setViewVisibility(R.id.refresh, View.VISIBLE);
 
-        Intent configureIntent = new Intent(context, WeatherAppWidgetConfigure.class);
-        configureIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
-        widget.setOnClickPendingIntent(R.id.weather_data,
-                PendingIntent.getActivity(context, 0, configureIntent, PendingIntent.FLAG_UPDATE_CURRENT));
-
-        boolean withForcast = prefs.getBoolean(WeatherAppWidgetConfigure.KEY_WITH_FORECAST + "_" + appWidgetId, true);
-
-        boolean backgroundShadow = prefs.getBoolean(WeatherAppWidgetConfigure.KEY_BACKGROUND_SHADOW + "_" + appWidgetId, false);
-        widget.setViewVisibility(R.id.background_shadow, backgroundShadow ? View.VISIBLE : View.GONE);
+        widget.setViewVisibility(R.id.background_shadow, config.mBackgroundShadow ? View.VISIBLE : View.GONE);
         initWidget(widget);
 
-        OmniJawsClient.WeatherInfo weatherData = weatherClient.getWeatherInfo();
         if (weatherData == null) {
             Log.e(TAG, "updateWeather weatherData == null");
             widget.setViewVisibility(R.id.current_weather_city, View.INVISIBLE);
@@ -228,27 +351,12 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             widget.setViewVisibility(R.id.current_weather_data, View.GONE);
             widget.setTextViewText(R.id.no_weather_notice, context.getResources().getString(R.string.omnijaws_service_unkown));
             widget.setViewVisibility(R.id.no_weather_notice, View.VISIBLE);
-            appWidgetManager.partiallyUpdateAppWidget(appWidgetId, widget);
-            return;
-        }
-        if (LOGGING) {
-            Log.i(TAG, "updateWeather " + weatherData.toString());
+            return widget;
         }
         widget.setViewVisibility(R.id.no_weather_notice, View.GONE);
 
-        Bundle newOptions = appWidgetManager.getAppWidgetOptions(appWidgetId);
-        int minHeight = context.getResources().getDimensionPixelSize(R.dimen.weather_widget_height);
-        int minWidth = context.getResources().getDimensionPixelSize(R.dimen.weather_widget_width);
-
-        int currentHeight = minHeight;
-        int currentWidth = minWidth;
-
-        if (newOptions != null) {
-            currentHeight = newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT, minHeight);
-            currentWidth = newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_WIDTH, minWidth);
-        }
-        boolean showDays = (currentHeight > minHeight && withForcast) ? true : false;
-        boolean showLocalDetails = (currentHeight > minHeight && withForcast) ? true : false;
+        boolean showDays = config.mShowDetails;
+        boolean showLocalDetails = config.mShowDetails;
 
         Long timeStamp = weatherData.timeStamp;
         String format = DateFormat.is24HourFormat(context) ? "HH:mm" : "hh:mm a";
@@ -259,10 +367,9 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         Calendar cal = Calendar.getInstance();
         String dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        Drawable d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(0).conditionCode);
-        BitmapDrawable bd = overlay(context.getResources(), d, weatherData.forecasts.get(0).low, weatherData.forecasts.get(0).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_0, bd.getBitmap());
+        setConditionImage(context, widget, R.id.forecast_image_0, weatherClient, iconPack,
+                weatherData.forecasts.get(0).conditionCode, weatherData.forecasts.get(0).low,
+                weatherData.forecasts.get(0).high, weatherData.tempUnits);
         widget.setTextViewText(R.id.forecast_text_0, dayShort);
         widget.setViewVisibility(R.id.forecast_text_0, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_0, withForcast ? View.VISIBLE : View.GONE);
@@ -270,10 +377,9 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(1).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(1).low, weatherData.forecasts.get(1).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_1, bd.getBitmap());
+        setConditionImage(context, widget, R.id.forecast_image_1, weatherClient, iconPack,
+                weatherData.forecasts.get(1).conditionCode, weatherData.forecasts.get(1).low,
+                weatherData.forecasts.get(1).high, weatherData.tempUnits);
         widget.setTextViewText(R.id.forecast_text_1, dayShort);
         widget.setViewVisibility(R.id.forecast_text_1, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_1, withForcast ? View.VISIBLE : View.GONE);
@@ -281,10 +387,9 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(2).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(2).low, weatherData.forecasts.get(2).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_2, bd.getBitmap());
+        setConditionImage(context, widget, R.id.forecast_image_2, weatherClient, iconPack,
+                weatherData.forecasts.get(2).conditionCode, weatherData.forecasts.get(2).low,
+                weatherData.forecasts.get(2).high, weatherData.tempUnits);
         widget.setTextViewText(R.id.forecast_text_2, dayShort);
         widget.setViewVisibility(R.id.forecast_text_2, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_2, withForcast ? View.VISIBLE : View.GONE);
@@ -292,10 +397,9 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(3).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(3).low, weatherData.forecasts.get(3).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_3, bd.getBitmap());
+        setConditionImage(context, widget, R.id.forecast_image_3, weatherClient, iconPack,
+                weatherData.forecasts.get(3).conditionCode, weatherData.forecasts.get(3).low,
+                weatherData.forecasts.get(3).high, weatherData.tempUnits);
         widget.setTextViewText(R.id.forecast_text_3, dayShort);
         widget.setViewVisibility(R.id.forecast_text_3, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_3, withForcast ? View.VISIBLE : View.GONE);
@@ -303,17 +407,15 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(4).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(4).low, weatherData.forecasts.get(4).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_4, bd.getBitmap());
+        setConditionImage(context, widget, R.id.forecast_image_4, weatherClient, iconPack,
+                weatherData.forecasts.get(4).conditionCode, weatherData.forecasts.get(4).low,
+                weatherData.forecasts.get(4).high, weatherData.tempUnits);
         widget.setTextViewText(R.id.forecast_text_4, dayShort);
         widget.setViewVisibility(R.id.forecast_text_4, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_4, withForcast ? View.VISIBLE : View.GONE);
 
-        d = weatherClient.getWeatherConditionImage(weatherData.conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.temp, null, weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.current_image, bd.getBitmap());
+        setConditionImage(context, widget, R.id.current_image, weatherClient, iconPack,
+                weatherData.conditionCode, weatherData.temp, null, weatherData.tempUnits);
         widget.setTextViewText(R.id.current_text, context.getResources().getText(R.string.omnijaws_current_text));
         widget.setViewVisibility(R.id.current_text, showDays ? View.VISIBLE : View.GONE);
 
@@ -322,31 +424,64 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         widget.setTextViewText(R.id.current_weather_data, weatherData.windSpeed + " " + weatherData.windUnits + " "
                 + weatherData.pinWheel + " - " + weatherData.humidity);
 
-        appWidgetManager.updateAppWidget(appWidgetId, widget);
+        return widget;
+    }
+
+    private static void setConditionImage(Context context, WidgetState widget, int viewId,
+            OmniJawsClient weatherClient, String iconPack, int conditionCode, String min, String max,
+            String tempUnits) {
+        final Resources res = context.getResources();
+        final String text = max != null ? min + "/" + max + tempUnits : min + tempUnits;
+        final String key = WidgetBitmapCache.getKey(iconPack,
+                WidgetIconCache.getPackageTime(context, iconPack), conditionCode, text,
+                res.getColor(R.color.widget_text_color), res.getDisplayMetrics().density,
+                res.getDisplayMetrics().scaledDensity);
+        Bitmap bitmap = WidgetBitmapCache.get(key);
+        if (bitmap == null) {
+            Bitmap icon = WidgetIconCache.getConditionIcon(context, weatherClient, iconPack, conditionCode);
+            if (icon == null) {
+                Log.w(TAG, "No condition image for " + conditionCode);
+                return;
+            }
+            bitmap = overlay(res, icon, text);
+            WidgetBitmapCache.put(key, bitmap);
+        }
+        widget.setImageViewBitmap(viewId, key, bitmap);
+    }
+
+    private static void setRefreshImage(Context context, WidgetState widget) {
+        final Resources res = context.getResources();
+        final String key = WidgetBitmapCache.getKey(context.getPackageName(),
+                WidgetIconCache.getPackageTime(context, context.getPackageName()),
+                R.drawable.ic_menu_refresh, "", 0, res.getDisplayMetrics().density,
+                res.getDisplayMetrics().scaledDensity);
+        widget.setImageViewBitmap(R.id.refresh, key, WidgetIconCache.getRefreshIcon(context));
     }
 
     private static void showProgress(
-            Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+            Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
 
         if (LOGGING) {
-            Log.i(TAG, "showProgress " + appWidgetId);
+            Log.i(TAG, "showProgress " + Arrays.toString(appWidgetIds));
         }
 
-        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
+        WidgetState widget = new WidgetState(context, R.layout.weather_appwidget);
         widget.setViewVisibility(R.id.condition_line, View.GONE);
         widget.setViewVisibility(R.id.progress_container, View.VISIBLE);
 
-        appWidgetManager.partiallyUpdateAppWidget(appWidgetId, widget);
+        for (int appWidgetId : appWidgetIds) {
+            widget.push(appWidgetManager, appWidgetId, true);
+        }
     }
 
     private static void showError(
-            Context context, AppWidgetManager appWidgetManager, int appWidgetId, int errorReason) {
+            Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds, int errorReason) {
 
         if (LOGGING) {
-            Log.i(TAG, "showError " + appWidgetId);
+            Log.i(TAG, "showError " + Arrays.toString(appWidgetIds));
         }
 
-        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
+        WidgetState widget = new WidgetState(context, R.layout.weather_appwidget);
         initWidget(widget);
 
         if (errorReason == EXTRA_ERROR_DISABLED) {
@@ -362,10 +497,12 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             widget.setViewVisibility(R.id.no_weather_notice, View.GONE);
         }
 
-        appWidgetManager.partiallyUpdateAppWidget(appWidgetId, widget);
+        for (int appWidgetId : appWidgetIds) {
+            widget.push(appWidgetManager, appWidgetId, true);
+        }
     }
 
-    private static void initWidget(RemoteViews widget) {
+    private static void initWidget(WidgetState widget) {
         widget.setViewVisibility(R.id.progress_container, View.GONE);
         widget.setViewVisibility(R.id.condition_line, View.VISIBLE);
         widget.setViewVisibility(R.id.timestamp_container, View.VISIBLE);
@@ -376,22 +513,24 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         widget.setViewVisibility(R.id.refresh, View.VISIBLE);
     }
 
-    private static BitmapDrawable overlay(Resources resources, Drawable image, String min, String max, String tempUnits) {
-        if (image instanceof VectorDrawable) {
-            image = applyTint(image);
-        }
+    /**
+     * Draws the text below the already shadowed icon. The text gets its
+     * shadow from the paint instead of blurring the whole bitmap.
+     */
+    private static Bitmap overlay(Resources resources, Bitmap icon, String str) {
         final Canvas canvas = new Canvas();
         canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.ANTI_ALIAS_FLAG,
                 Paint.FILTER_BITMAP_FLAG));
         final float density = resources.getDisplayMetrics().density;
         final int footerHeight = Math.round(18 * density);
-        final int imageWidth = image.getIntrinsicWidth();
-        final int imageHeight = image.getIntrinsicHeight();
+        final int imageWidth = icon.getWidth();
+        final int imageHeight = icon.getHeight();
         final TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
         Typeface font = Typeface.create("sans-serif-condensed", Typeface.NORMAL);
         textPaint.setTypeface(font);
         textPaint.setColor(resources.getColor(R.color.widget_text_color));
         textPaint.setTextAlign(Paint.Align.LEFT);
+        textPaint.setShadowLayer(5, 0, 0, Color.BLACK);
         final int textSize = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 14f, resources.getDisplayMetrics());
         textPaint.setTextSize(textSize);
         final int height = imageHeight + footerHeight;
@@ -399,26 +538,13 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
 
         final Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         canvas.setBitmap(bmp);
-        image.setBounds(0, 0, imageWidth, imageHeight);
-        image.draw(canvas);
+        canvas.drawBitmap(icon, 0, 0, null);
 
-        String str = null;
-        if (max != null) {
-            str = min + "/" + max + tempUnits;
-        } else {
-            str = min + tempUnits;
-        }
         Rect bounds = new Rect();
         textPaint.getTextBounds(str, 0, str.length(), bounds);
         canvas.drawText(str, width / 2 - bounds.width() / 2, height - textSize / 2, textPaint);
 
-        return shadow(resources, bmp);
-    }
-
-    private static Drawable applyTint(Drawable icon) {
-        icon = icon.mutate();
-        icon.setTint(Color.WHITE);
-        return icon;
+        return bmp;
     }
 
     public static BitmapDrawable shadow(Resources resources, Drawable image) {
@@ -450,27 +576,4 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
 
         return new BitmapDrawable(resources, bmResult);
     }
-
-    public static BitmapDrawable shadow(Resources resources, Bitmap b) {
-        final Canvas canvas = new Canvas();
-        canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.ANTI_ALIAS_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
-
-        BlurMaskFilter blurFilter = new BlurMaskFilter(5, BlurMaskFilter.Blur.OUTER);
-        Paint shadowPaint = new Paint();
-        shadowPaint.setColor(Color.BLACK);
-        shadowPaint.setMaskFilter(blurFilter);
-
-        int[] offsetXY = new int[2];
-        Bitmap b2 = b.extractAlpha(shadowPaint, offsetXY);
-
-        Bitmap bmResult = Bitmap.createBitmap(b.getWidth(), b.getHeight(),
-                Bitmap.Config.ARGB_8888);
-
-        canvas.setBitmap(bmResult);
-        canvas.drawBitmap(b2, offsetXY[0], offsetXY[1], null);
-        canvas.drawBitmap(b, 0, 0, null);
-
-        return new BitmapDrawable(resources, bmResult);
-    }
 }
@@ -0,0 +1,67 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.widget;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Finished widget bitmaps so unchanged forecast slots are not drawn again.
+ * The bitmaps are shared between updates and must not be modified.
+ */
+class WidgetBitmapCache {
+    private static final String TAG = "WidgetBitmapCache";
+    private static final boolean LOGGING = false;
+
+    // in KB
+    private static final int MAX_SIZE = (int) Math.min(Runtime.getRuntime().maxMemory() / 1024 / 16,
+            4 * 1024);
+
+    private static final LruCache<String, Bitmap> sCache = new LruCache<String, Bitmap>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return Math.max(bitmap.getByteCount() / 1024, 1);
+        }
+    };
+
+    /**
+     * @param packageTime install time of the icon pack, so updated packs are drawn again
+     */
+    static String getKey(String iconPack, long packageTime, int conditionCode, String text,
+            int tint, float density, float scaledDensity) {
+        return iconPack + "|" + packageTime + "|" + conditionCode + "|" + text + "|"
+                + Integer.toHexString(tint) + "|" + density + "|" + scaledDensity;
+    }
+
+    static Bitmap get(String key) {
+        Bitmap bitmap = sCache.get(key);
+        if (LOGGING) {
+            Log.i(TAG, (bitmap != null ? "hit " : "miss ") + key);
+        }
+        return bitmap;
+    }
+
+    static void put(String key, Bitmap bitmap) {
+        sCache.put(key, bitmap);
+    }
+
+    static void clear() {
+        sCache.evictAll();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.widget;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.VectorDrawable;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import org.omnirom.omnijaws.R;
+import org.omnirom.omnijaws.client.OmniJawsClient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Condition icons with their drop shadow already applied, so rendering a
+ * widget only has to draw the temperature below them. Icons are kept in
+ * the widget bitmap cache and, if enabled, as png files that survive
+ * process restarts. Every version of an icon pack at a density gets its
+ * own directory, directories no widget uses anymore are deleted.
+ */
+class WidgetIconCache {
+    private static final String TAG = "WidgetIconCache";
+    private static final boolean LOGGING = false;
+
+    private static final String CACHE_DIR = "widget_icons";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // separates the parts of a directory name, never part of a sanitized pack name
+    private static final String SEPARATOR = "-";
+    // condition codes an icon pack provides
+    static final int MAX_CONDITION_CODE = 47;
+    // vector icons are drawn in white
+    private static final int ICON_TINT = Color.WHITE;
+
+    // pack versions already prepared by this process
+    private static final ArraySet<String> sPrepared = new ArraySet<String>();
+    // install time of the icon packs, read again for every render pass
+    private static final ArrayMap<String, Long> sPackageTimes = new ArrayMap<String, Long>();
+
+    static Bitmap getConditionIcon(Context context, OmniJawsClient weatherClient, String iconPack,
+            int conditionCode) {
+        final String dir = getDirName(context, iconPack);
+        final String name = String.valueOf(conditionCode);
+        Bitmap bitmap = get(context, dir, name);
+        if (bitmap == null) {
+            Drawable d = weatherClient.getWeatherConditionImage(conditionCode);
+            if (d == null) {
+                return null;
+            }
+            bitmap = put(context, dir, name, d, true);
+        }
+        return bitmap;
+    }
+
+    static Bitmap getRefreshIcon(Context context) {
+        final String dir = getDirName(context, context.getPackageName());
+        final String name = "refresh";
+        Bitmap bitmap = get(context, dir, name);
+        if (bitmap == null) {
+            bitmap = put(context, dir, name,
+                    context.getResources().getDrawable(R.drawable.ic_menu_refresh), false);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Forgets the install times of the icon packs so updated packs are
+     * noticed. Called at the start of every render pass.
+     */
+    static void clearPackageTimes() {
+        synchronized (sPackageTimes) {
+            sPackageTimes.clear();
+        }
+    }
+
+    /**
+     * @return the install time of the package of the icon pack or 0
+     */
+    static long getPackageTime(Context context, String iconPack) {
+        iconPack = getPackName(context, iconPack);
+        // icon packs are named package.prefix
+        int idx = iconPack.lastIndexOf(".");
+        String packageName = idx > 0 && !iconPack.equals(context.getPackageName())
+                ? iconPack.substring(0, idx) : iconPack;
+        synchronized (sPackageTimes) {
+            Long time = sPackageTimes.get(packageName);
+            if (time == null) {
+                try {
+                    time = context.getPackageManager().getPackageInfo(packageName, 0).lastUpdateTime;
+                } catch (PackageManager.NameNotFoundException e) {
+                    time = 0L;
+                }
+                sPackageTimes.put(packageName, time);
+            }
+            return time;
+        }
+    }
+
+    /**
+     * @return true the first time it is called for this version of the pack
+     * and the disk cache is enabled
+     */
+    static boolean startPrepare(Context context, String iconPack) {
+        if (!context.getResources().getBoolean(R.bool.widget_icon_disk_cache)) {
+            return false;
+        }
+        synchronized (sPrepared) {
+            return sPrepared.add(getDirName(context, iconPack));
+        }
+    }
+
+    /**
+     * Draws one shadowed icon of the pack to disk unless it is there already.
+     */
+    static void prepare(Context context, OmniJawsClient weatherClient, String iconPack,
+            int conditionCode) {
+        final String dir = getDirName(context, iconPack);
+        final String name = String.valueOf(conditionCode);
+        if (getFile(context, dir, name).exists()) {
+            return;
+        }
+        Drawable d = weatherClient.getWeatherConditionImage(conditionCode);
+        if (d != null) {
+            write(context, dir, name, shadow(context.getResources(), d, true));
+            if (LOGGING) {
+                Log.i(TAG, "prepared " + dir + "/" + name);
+            }
+        }
+    }
+
+    /**
+     * Deletes the stored icons of all pack versions and densities except
+     * the current ones of the given packs.
+     */
+    static void trim(Context context, Collection<String> iconPacks) {
+        final ArraySet<String> keep = new ArraySet<String>();
+        keep.add(getDirName(context, context.getPackageName()));
+        for (String iconPack : iconPacks) {
+            keep.add(getDirName(context, iconPack));
+        }
+        File[] dirs = new File(context.getCacheDir(), CACHE_DIR).listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (!keep.contains(dir.getName())) {
+                if (LOGGING) {
+                    Log.i(TAG, "trim " + dir.getName());
+                }
+                delete(dir);
+            }
+        }
+    }
+
+    /**
+     * Deletes all stored icons.
+     */
+    static void clear(Context context) {
+        synchronized (sPrepared) {
+            sPrepared.clear();
+        }
+        delete(new File(context.getCacheDir(), CACHE_DIR));
+    }
+
+    private static Bitmap get(Context context, String dir, String name) {
+        final String key = dir + "/" + name;
+        Bitmap bitmap = WidgetBitmapCache.get(key);
+        if (bitmap == null && context.getResources().getBoolean(R.bool.widget_icon_disk_cache)) {
+            File file = getFile(context, dir, name);
+            if (file.exists()) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inScaled = false;
+                bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+                if (bitmap != null) {
+                    WidgetBitmapCache.put(key, bitmap);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    private static Bitmap put(Context context, String dir, String name, Drawable image,
+            boolean tint) {
+        Bitmap bitmap = shadow(context.getResources(), image, tint);
+        WidgetBitmapCache.put(dir + "/" + name, bitmap);
+        if (context.getResources().getBoolean(R.bool.widget_icon_disk_cache)) {
+            write(context, dir, name, bitmap);
+        }
+        return bitmap;
+    }
+
+    private static Bitmap shadow(Resources resources, Drawable image, boolean tint) {
+        if (tint && image instanceof VectorDrawable) {
+            image = image.mutate();
+            image.setTint(ICON_TINT);
+        }
+        return WeatherAppWidgetProvider.shadow(resources, image).getBitmap();
+    }
+
+    private static void write(Context context, String dir, String name, Bitmap bitmap) {
+        final File file = getFile(context, dir, name);
+        final File temp = new File(file.getPath() + TEMP_SUFFIX);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Rename failed for " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store icon " + dir + "/" + name, e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String getPackName(Context context, String iconPack) {
+        return TextUtils.isEmpty(iconPack) ? context.getPackageName() : iconPack;
+    }
+
+    /**
+     * @return the directory of the icons of this version of the pack
+     * at the current density
+     */
+    private static String getDirName(Context context, String iconPack) {
+        iconPack = getPackName(context, iconPack);
+        return iconPack.replaceAll("[^A-Za-z0-9._]", "_") + SEPARATOR
+                + getPackageTime(context, iconPack) + SEPARATOR
+                + Integer.toHexString(ICON_TINT) + SEPARATOR
+                + context.getResources().getDisplayMetrics().densityDpi;
+    }
+
+    private static File getFile(Context context, String dir, String name) {
+        return new File(new File(new File(context.getCacheDir(), CACHE_DIR), dir), name + ".png");
+    }
+}
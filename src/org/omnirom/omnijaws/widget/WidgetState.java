@@ -0,0 +1,199 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.widget;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.SparseArray;
+import android.widget.RemoteViews;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The values set on the views of one widget. The last state pushed to each
+ * widget is remembered without its bitmaps, so the next push can be skipped
+ * or reduced to a partial update of the views that changed.
+ */
+class WidgetState {
+    private static final String TAG = "WidgetState";
+    private static final boolean LOGGING = false;
+
+    private static final int TYPE_TEXT = 0;
+    private static final int TYPE_VISIBILITY = 1;
+    private static final int TYPE_BITMAP = 2;
+    private static final int TYPE_CLICK = 3;
+
+    // what the host shows for each widget, only the keys are kept
+    private static final SparseArray<WidgetState> sShown = new SparseArray<WidgetState>();
+
+    private static class Entry {
+        final int mViewId;
+        final int mType;
+        // compared to find changes
+        final Object mKey;
+        // applied to the views, null in remembered states
+        final Object mValue;
+
+        Entry(int viewId, int type, Object key, Object value) {
+            mViewId = viewId;
+            mType = type;
+            mKey = key;
+            mValue = value;
+        }
+    }
+
+    private final String mPackageName;
+    private final int mLayoutId;
+    private final LinkedHashMap<Integer, Entry> mEntries = new LinkedHashMap<Integer, Entry>();
+
+    WidgetState(Context context, int layoutId) {
+        this(context.getPackageName(), layoutId);
+    }
+
+    private WidgetState(String packageName, int layoutId) {
+        mPackageName = packageName;
+        mLayoutId = layoutId;
+    }
+
+    WidgetState copy() {
+        WidgetState copy = new WidgetState(mPackageName, mLayoutId);
+        copy.mEntries.putAll(mEntries);
+        return copy;
+    }
+
+    void setTextViewText(int viewId, CharSequence text) {
+        put(new Entry(viewId, TYPE_TEXT, text != null ? text.toString() : null, text));
+    }
+
+    void setViewVisibility(int viewId, int visibility) {
+        put(new Entry(viewId, TYPE_VISIBILITY, visibility, visibility));
+    }
+
+    /**
+     * @param key identifies the content of the bitmap
+     */
+    void setImageViewBitmap(int viewId, String key, Bitmap bitmap) {
+        put(new Entry(viewId, TYPE_BITMAP, key, bitmap));
+    }
+
+    void setOnClickPendingIntent(int viewId, PendingIntent intent) {
+        put(new Entry(viewId, TYPE_CLICK, intent, intent));
+    }
+
+    private void put(Entry entry) {
+        // a later value for the same view replaces the earlier one
+        mEntries.put(entry.mViewId * 4 + entry.mType, entry);
+    }
+
+    /**
+     * Sends what differs from the state the widget shows.
+     *
+     * @param partial true if this state only covers some of the views, the
+     * other views keep what they show
+     */
+    void push(AppWidgetManager appWidgetManager, int appWidgetId, boolean partial) {
+        final WidgetState shown;
+        synchronized (sShown) {
+            shown = sShown.get(appWidgetId);
+        }
+        if (!partial && (shown == null || !shown.mEntries.keySet().equals(mEntries.keySet()))) {
+            if (LOGGING) {
+                Log.i(TAG, "full update " + appWidgetId);
+            }
+            appWidgetManager.updateAppWidget(appWidgetId, toRemoteViews(null));
+            remember(appWidgetId, null);
+            return;
+        }
+        RemoteViews views = toRemoteViews(shown);
+        if (views == null) {
+            if (LOGGING) {
+                Log.i(TAG, "unchanged " + appWidgetId);
+            }
+            return;
+        }
+        if (LOGGING) {
+            Log.i(TAG, "partial update " + appWidgetId);
+        }
+        appWidgetManager.partiallyUpdateAppWidget(appWidgetId, views);
+        remember(appWidgetId, shown);
+    }
+
+    /**
+     * @return the views that differ from shown or null if there are none
+     */
+    private RemoteViews toRemoteViews(WidgetState shown) {
+        RemoteViews views = null;
+        for (Map.Entry<Integer, Entry> e : mEntries.entrySet()) {
+            final Entry entry = e.getValue();
+            if (shown != null) {
+                Entry shownEntry = shown.mEntries.get(e.getKey());
+                if (shownEntry != null && Objects.equals(shownEntry.mKey, entry.mKey)) {
+                    continue;
+                }
+            }
+            if (views == null) {
+                views = new RemoteViews(mPackageName, mLayoutId);
+            }
+            switch (entry.mType) {
+                case TYPE_TEXT:
+                    views.setTextViewText(entry.mViewId, (CharSequence) entry.mValue);
+                    break;
+                case TYPE_VISIBILITY:
+                    views.setViewVisibility(entry.mViewId, (Integer) entry.mValue);
+                    break;
+                case TYPE_BITMAP:
+                    views.setImageViewBitmap(entry.mViewId, (Bitmap) entry.mValue);
+                    break;
+                case TYPE_CLICK:
+                    views.setOnClickPendingIntent(entry.mViewId, (PendingIntent) entry.mValue);
+                    break;
+            }
+        }
+        return views;
+    }
+
+    private void remember(int appWidgetId, WidgetState shown) {
+        WidgetState state = new WidgetState(mPackageName, mLayoutId);
+        if (shown != null) {
+            state.mEntries.putAll(shown.mEntries);
+        }
+        for (Map.Entry<Integer, Entry> e : mEntries.entrySet()) {
+            final Entry entry = e.getValue();
+            state.mEntries.put(e.getKey(), new Entry(entry.mViewId, entry.mType, entry.mKey, null));
+        }
+        synchronized (sShown) {
+            sShown.put(appWidgetId, state);
+        }
+    }
+
+    /**
+     * The next push to these widgets sends everything again.
+     */
+    static void forget(int[] appWidgetIds) {
+        synchronized (sShown) {
+            for (int appWidgetId : appWidgetIds) {
+                sShown.remove(appWidgetId);
+            }
+        }
+    }
+}
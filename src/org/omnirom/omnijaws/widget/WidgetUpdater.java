@@ -0,0 +1,257 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver.PendingResult;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.ArraySet;
+import android.util.Log;
+
+import org.omnirom.omnijaws.client.OmniJawsClient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders the widgets on a background thread. Requests that arrive while a
+ * render pass is pending are merged into it, so a burst of broadcasts draws
+ * every widget only once. The broadcasts are kept alive with goAsync()
+ * until the pass that covers them is done.
+ */
+class WidgetUpdater {
+    private static final String TAG = "WidgetUpdater";
+    private static final boolean LOGGING = false;
+
+    // requests arriving within this time share a pass
+    private static final long COALESCE_DELAY = 100;
+    // waiting broadcasts, older ones are finished early as the pass covers them anyway
+    private static final int MAX_PENDING_RESULTS = 8;
+
+    // what all widgets should show, the last request wins
+    private static final int STATE_NONE = 0;
+    private static final int STATE_WEATHER = 1;
+    private static final int STATE_PROGRESS = 2;
+    private static final int STATE_ERROR = 3;
+
+    private static final Object sLock = new Object();
+    private static Handler sHandler;
+    private static boolean sScheduled;
+    private static int sPendingState = STATE_NONE;
+    private static int sPendingErrorReason;
+    // version of the requested weather or -1 to render in any case
+    private static long sPendingVersion = -1;
+    // single widgets to render with the weather
+    private static final ArraySet<Integer> sPendingIds = new ArraySet<Integer>();
+    private static final ArrayDeque<PendingResult> sPendingResults = new ArrayDeque<PendingResult>();
+
+    // weather version the widgets currently show, -1 if they show something else
+    // only used on the render thread
+    private static long sShownVersion = -1;
+
+    static void requestWeather(Context context, long version, PendingResult result) {
+        final PendingResult overflow;
+        synchronized (sLock) {
+            // a pending request that must render in any case stays that way
+            boolean force = sPendingState == STATE_WEATHER && sPendingVersion == -1;
+            sPendingState = STATE_WEATHER;
+            sPendingVersion = force ? -1 : version;
+            overflow = schedule(context, result);
+        }
+        finish(overflow);
+    }
+
+    static void requestProgress(Context context, PendingResult result) {
+        final PendingResult overflow;
+        synchronized (sLock) {
+            sPendingState = STATE_PROGRESS;
+            overflow = schedule(context, result);
+        }
+        finish(overflow);
+    }
+
+    static void requestError(Context context, int errorReason, PendingResult result) {
+        final PendingResult overflow;
+        synchronized (sLock) {
+            sPendingState = STATE_ERROR;
+            sPendingErrorReason = errorReason;
+            overflow = schedule(context, result);
+        }
+        finish(overflow);
+    }
+
+    static void requestWidgets(Context context, int[] appWidgetIds, PendingResult result) {
+        final PendingResult overflow;
+        synchronized (sLock) {
+            for (int appWidgetId : appWidgetIds) {
+                sPendingIds.add(appWidgetId);
+            }
+            overflow = schedule(context, result);
+        }
+        finish(overflow);
+    }
+
+    /**
+     * Draws the icons of the pack to the disk cache once the current pass
+     * is done and its broadcasts are finished. Every icon is drawn in its
+     * own message so later passes are not held up. Only called on the
+     * render thread.
+     */
+    static void requestPrepare(final Context context, final String iconPack) {
+        final Handler handler;
+        synchronized (sLock) {
+            handler = sHandler;
+        }
+        if (handler == null || !WidgetIconCache.startPrepare(context, iconPack)) {
+            return;
+        }
+        handler.post(new Runnable() {
+            private OmniJawsClient mWeatherClient;
+            private int mConditionCode;
+
+            @Override
+            public void run() {
+                try {
+                    if (mWeatherClient == null) {
+                        // drop what older pack versions and unused packs left behind
+                        WidgetIconCache.trim(context,
+                                WeatherAppWidgetProvider.getIconPacks(context));
+                        mWeatherClient = new OmniJawsClient(context);
+                        mWeatherClient.loadIconPackage(iconPack);
+                    }
+                    WidgetIconCache.prepare(context, mWeatherClient, iconPack, mConditionCode);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Preparing icons of " + iconPack + " failed", e);
+                    return;
+                }
+                if (++mConditionCode <= WidgetIconCache.MAX_CONDITION_CODE) {
+                    handler.post(this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called with sLock held.
+     *
+     * @return the oldest waiting broadcast if there are too many, the caller
+     * finishes it after releasing sLock
+     */
+    private static PendingResult schedule(final Context context, PendingResult result) {
+        PendingResult overflow = null;
+        if (result != null) {
+            sPendingResults.add(result);
+            if (sPendingResults.size() > MAX_PENDING_RESULTS) {
+                overflow = sPendingResults.poll();
+            }
+        }
+        if (sScheduled) {
+            if (LOGGING) {
+                Log.i(TAG, "merged into pending pass");
+            }
+            return overflow;
+        }
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        sScheduled = true;
+        final Context appContext = context.getApplicationContext();
+        sHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                render(appContext);
+            }
+        }, COALESCE_DELAY);
+        return overflow;
+    }
+
+    private static void finish(PendingResult result) {
+        if (result != null) {
+            result.finish();
+        }
+    }
+
+    private static void render(Context context) {
+        final int state;
+        final int errorReason;
+        final long version;
+        final int[] appWidgetIds;
+        final List<PendingResult> results;
+        synchronized (sLock) {
+            sScheduled = false;
+            state = sPendingState;
+            errorReason = sPendingErrorReason;
+            version = sPendingVersion;
+            appWidgetIds = new int[sPendingIds.size()];
+            for (int i = 0; i < appWidgetIds.length; i++) {
+                appWidgetIds[i] = sPendingIds.valueAt(i);
+            }
+            results = new ArrayList<PendingResult>(sPendingResults);
+            sPendingState = STATE_NONE;
+            sPendingVersion = -1;
+            sPendingIds.clear();
+            sPendingResults.clear();
+        }
+        if (LOGGING) {
+            Log.i(TAG, "render state = " + state + " widgets = " + appWidgetIds.length);
+        }
+
+        try {
+            if (state == STATE_WEATHER) {
+                if (version != -1 && version == sShownVersion) {
+                    if (LOGGING) {
+                        Log.i(TAG, "weather unchanged " + version);
+                    }
+                    if (appWidgetIds.length != 0) {
+                        WeatherAppWidgetProvider.updateWeather(context,
+                                AppWidgetManager.getInstance(context), appWidgetIds);
+                    }
+                } else {
+                    WeatherAppWidgetProvider.updateAllWeather(context);
+                    if (version != -1) {
+                        sShownVersion = version;
+                    }
+                }
+                return;
+            }
+            if (appWidgetIds.length != 0) {
+                WeatherAppWidgetProvider.updateWeather(context,
+                        AppWidgetManager.getInstance(context), appWidgetIds);
+            }
+            if (state == STATE_PROGRESS) {
+                WeatherAppWidgetProvider.showUpdateProgress(context);
+                sShownVersion = -1;
+            } else if (state == STATE_ERROR) {
+                WeatherAppWidgetProvider.showErrorState(context, errorReason);
+                sShownVersion = -1;
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Widget update failed", e);
+        } finally {
+            for (PendingResult result : results) {
+                result.finish();
+            }
+        }
+    }
+}